@@ -1,5 +1,6 @@
 package org.vyloterra;
 
+import io.papermc.paper.event.player.PlayerTrackEntityEvent;
 import org.bukkit.GameMode;
 import org.bukkit.Material;
 import org.bukkit.NamespacedKey;
@@ -16,16 +17,13 @@ import org.bukkit.event.server.MapInitializeEvent;
 import org.bukkit.inventory.EquipmentSlot;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.inventory.meta.MapMeta;
 import org.bukkit.map.MapView;
 import org.bukkit.persistence.PersistentDataType;
 import org.vyloterra.util.ColorUtil;
 import org.vyloterra.util.DataManager;
 import org.vyloterra.util.Lang;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
-
 public class ArtListener implements Listener {
 
     private final ArtMapPlugin plugin;
@@ -33,9 +31,6 @@ public class ArtListener implements Listener {
     private final NamespacedKey keyLocked;
     private final NamespacedKey keyCanvas;
 
-    // Anti-spam pro přepínání režimů (aby to neproblikávalo moc rychle)
-    private final Map<UUID, Long> modeCooldowns = new HashMap<>();
-
     public ArtListener(ArtMapPlugin plugin, PaintingManager paintingManager) {
         this.plugin = plugin;
         this.paintingManager = paintingManager;
@@ -60,11 +55,12 @@ public class ArtListener implements Listener {
                 event.setCancelled(true); // Vždy zrušit poškození rámečku
 
                 // Kontrola Anti-Spamu (min. 200 ms mezi kliknutími)
+                PainterSession session = paintingManager.getSession(player);
                 long now = System.currentTimeMillis();
-                if (now - modeCooldowns.getOrDefault(player.getUniqueId(), 0L) < 200) {
+                if (now - session.lastModeSwitch < 200) {
                     return;
                 }
-                modeCooldowns.put(player.getUniqueId(), now);
+                session.lastModeSwitch = now;
 
                 paintingManager.cyclePaintMode(player);
                 return;
@@ -95,7 +91,7 @@ public class ArtListener implements Listener {
         ItemStack itemInFrame = frame.getItem();
 
         // Pokud hráč už maluje, zrušíme interakci
-        if (paintingManager.getActiveFrames().containsValue(frame)) {
+        if (paintingManager.isBeingPainted(frame)) {
             event.setCancelled(true);
             return;
         }
@@ -151,15 +147,38 @@ public class ArtListener implements Listener {
     @EventHandler
     public void onQuit(PlayerQuitEvent event) {
         paintingManager.endSession(event.getPlayer());
-        modeCooldowns.remove(event.getPlayer().getUniqueId());
+        paintingManager.getMapSender().forgetPlayer(event.getPlayer());
+        ArtProtocol protocol = plugin.getArtProtocol();
+        if (protocol != null) protocol.forgetPlayer(event.getPlayer());
+    }
+
+    // --- GALERIE: zamčená díla dostane nový divák rovnou z hotového paketu ---
+    @EventHandler
+    public void onTrackFrame(PlayerTrackEntityEvent event) {
+        if (!(event.getEntity() instanceof ItemFrame frame) || !isLocked(frame)) return;
+        if (!(frame.getItem().getItemMeta() instanceof MapMeta meta) || !meta.hasMapView()) return;
+
+        MapView view = meta.getMapView();
+        if (view == null) return;
+        for (org.bukkit.map.MapRenderer r : view.getRenderers()) {
+            // Jen z cache: průchod galerií nesmí rozbalovat ani načítat uvolněná plátna
+            if (r instanceof ArtRenderer artRenderer) {
+                paintingManager.getMapSender().sendCached(event.getPlayer(), view, artRenderer);
+            }
+        }
     }
 
     @EventHandler
     public void onMapInit(MapInitializeEvent event) {
         MapView view = event.getMap();
+        // Zapečené dílo kreslí vanilla renderer přímo z uložených barev mapy
+        if (MapBaker.isBaked(view)) return;
         if (DataManager.hasSavedData(view.getId(), plugin.getDataFolder())) {
             view.getRenderers().forEach(view::removeRenderer);
-            view.addRenderer(new ArtRenderer(view.getId(), plugin.getDataFolder()));
+            // Pixely se načtou na pozadí, do té doby renderer nic nekreslí
+            view.addRenderer(paintingManager.track(ArtRenderer.loadAsync(view.getId(), plugin.getDataFolder())));
+            // Paket a verze poslané podle starého rendereru už neplatí
+            paintingManager.getMapSender().forget(view.getId());
         }
     }
 
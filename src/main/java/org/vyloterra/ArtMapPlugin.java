@@ -3,6 +3,7 @@ package org.vyloterra;
 import org.bukkit.command.PluginCommand;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.vyloterra.commands.ArtCommand;
+import org.vyloterra.util.DataManager;
 import java.util.List;
 
 public class ArtMapPlugin extends JavaPlugin {
@@ -22,6 +23,14 @@ public class ArtMapPlugin extends JavaPlugin {
         reloadValues();
         registerCanvasRecipe();
 
+        // Přesun starých souborů map_ID.dat do region úložiště a sestavení indexu map (na pozadí)
+        getServer().getScheduler().runTaskAsynchronously(this, () -> {
+            int migrated = DataManager.migrateLegacyFiles(getDataFolder());
+            if (migrated > 0) getLogger().info("Zmigrováno " + migrated + " map do region souborů.");
+            DataManager.buildIndex(getDataFolder());
+            getLogger().info("Index map sestaven (" + DataManager.getIndexedMapCount() + " pláten).");
+        });
+
         // 2. Inicializace Manažera
         this.paintingManager = new PaintingManager(this);
 
@@ -57,6 +66,9 @@ public class ArtMapPlugin extends JavaPlugin {
         if (paintingManager != null) {
             paintingManager.reloadValues();
         }
+        if (artProtocol != null) {
+            artProtocol.reloadValues();
+        }
     }
 
     @Override
@@ -64,10 +76,16 @@ public class ArtMapPlugin extends JavaPlugin {
         if (paintingManager != null) {
             getLogger().info("Ukládám rozpracované obrazy...");
             paintingManager.forceSaveAll();
+            paintingManager.shutdownHistory();
         }
+        DataManager.close();
         getLogger().info("ArtMap bezpečně ukončen.");
     }
 
+    public ArtProtocol getArtProtocol() {
+        return artProtocol;
+    }
+
     public String getDateFormat() {
         return dateFormat;
     }
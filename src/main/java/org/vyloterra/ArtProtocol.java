@@ -4,6 +4,7 @@ import com.comphenix.protocol.PacketType;
 import com.comphenix.protocol.ProtocolLibrary;
 import com.comphenix.protocol.events.PacketAdapter;
 import com.comphenix.protocol.events.PacketEvent;
+import com.comphenix.protocol.reflect.StructureModifier;
 import com.comphenix.protocol.wrappers.EnumWrappers;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
@@ -16,16 +17,73 @@ import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.persistence.PersistentDataType;
 import org.vyloterra.util.ColorUtil;
 
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
 public class ArtProtocol {
 
     private final ArtMapPlugin plugin;
     private final PaintingManager paintingManager;
     private final NamespacedKey keyLocked;
 
+    // Kliknutí na rámy: nejvýš jedna čekající úloha na hráče a limit úloh za sekundu
+    private final Map<UUID, InteractionGate> gates = new ConcurrentHashMap<>();
+    private volatile double interactionRate;
+    private volatile double interactionBurst;
+
+    // --- STATISTIKY ---
+    private final LongAdder interactionsHandled = new LongAdder();
+    private final LongAdder interactionsMerged = new LongAdder();
+    private final LongAdder interactionsDropped = new LongAdder();
+
+    /**
+     * Stav kliknutí jednoho hráče. Pakety přicházejí z vlákna ProtocolLibu,
+     * úlohu zpracovává hlavní vlákno.
+     */
+    private static final class InteractionGate {
+        // Na hlavním vlákně už čeká úloha, která zpracuje poslední kliknutí
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Entita z posledního kliknutí (vyhrává nejnovější paket)
+        private volatile int entityId;
+
+        // Token bucket
+        private double tokens = -1;
+        private long lastRefill;
+
+        private synchronized boolean tryAcquire(double rate, double burst) {
+            long now = System.nanoTime();
+            if (tokens < 0) {
+                tokens = burst;
+            } else {
+                tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1_000_000_000.0);
+            }
+            lastRefill = now;
+            if (tokens < 1) return false;
+            tokens--;
+            return true;
+        }
+    }
+
     public ArtProtocol(ArtMapPlugin plugin, PaintingManager paintingManager) {
         this.plugin = plugin;
         this.paintingManager = paintingManager;
         this.keyLocked = new NamespacedKey(plugin, "artmap_locked");
+        reloadValues();
+    }
+
+    public void reloadValues() {
+        this.interactionRate = Math.max(1.0, plugin.getConfig().getDouble("performance.interaction-rate", 20.0));
+        this.interactionBurst = Math.max(1.0, plugin.getConfig().getDouble("performance.interaction-burst", 10.0));
+    }
+
+    /**
+     * Uvolní stav kliknutí odpojeného hráče.
+     */
+    public void forgetPlayer(Player player) {
+        gates.remove(player.getUniqueId());
     }
 
     public void register() {
@@ -57,38 +115,97 @@ public class ArtProtocol {
                 // Přečteme ID entity z paketu
                 int entityId = event.getPacket().getIntegers().read(0);
 
+                // Úloha na hlavním vlákně už čeká: jen jí předáme nejnovější entitu
+                InteractionGate gate = gates.computeIfAbsent(player.getUniqueId(), id -> new InteractionGate());
+                gate.entityId = entityId;
+                if (!gate.scheduled.compareAndSet(false, true)) {
+                    interactionsMerged.increment();
+                    return;
+                }
+
+                // Autoclicker nebo držené tlačítko: úlohy nad limit zahodíme
+                if (!gate.tryAcquire(interactionRate, interactionBurst)) {
+                    gate.scheduled.set(false);
+                    interactionsDropped.increment();
+                    return;
+                }
+
                 // --- PŘESUN NA HLAVNÍ VLÁKNO SERVERU ---
                 // Bukkit API (jako player.getWorld(), getEntityFromID, volání eventů)
                 // NESMÍ být voláno z asynchronního vlákna ProtocolLibu.
                 Bukkit.getScheduler().runTask(plugin, () -> {
-                    Entity entity = ProtocolLibrary.getProtocolManager().getEntityFromID(player.getWorld(), entityId);
-
-                    if (entity instanceof ItemFrame frame) {
-                        // Kontrola pro ostatní pluginy (např. WorldGuard)
-                        org.bukkit.event.player.PlayerInteractEntityEvent checkEvent = new org.bukkit.event.player.PlayerInteractEntityEvent(player, frame);
-                        Bukkit.getPluginManager().callEvent(checkEvent);
-
-                        // Pokud nějaký plugin interakci zakázal, končíme
-                        if (checkEvent.isCancelled()) return;
-
-                        ItemStack item = frame.getItem();
-                        // Kontrola, zda je ve framu mapa
-                        if (item.getType() == Material.FILLED_MAP || item.getType() == Material.MAP) {
-
-                            // Kontrola zamčené mapy
-                            if (item.hasItemMeta()) {
-                                ItemMeta meta = item.getItemMeta();
-                                if (meta.getPersistentDataContainer().has(keyLocked, PersistentDataType.BYTE)) {
-                                    return;
-                                }
-                            }
-
-                            // Vše v pořádku, předáváme logiku manažerovi
-                            paintingManager.updatePaintingState(player, frame);
-                        }
-                    }
+                    // Uvolnit před čtením: kliknutí, které přijde teď, naplánuje další úlohu
+                    gate.scheduled.set(false);
+                    if (!player.isOnline()) return;
+                    interactionsHandled.increment();
+                    handleInteraction(player, gate.entityId);
                 });
             }
         });
+
+        // Natočení hlavy malujícího hráče mezi ticky: body pro vyhlazení tahů volnou rukou
+        ProtocolLibrary.getProtocolManager().addPacketListener(new PacketAdapter(plugin,
+                PacketType.Play.Client.LOOK, PacketType.Play.Client.POSITION_LOOK) {
+            @Override
+            public void onPacketReceiving(PacketEvent event) {
+                PainterSession session = paintingManager.findSession(event.getPlayer().getUniqueId());
+                if (session == null || !session.isPainting()) return;
+
+                StructureModifier<Float> rotation = event.getPacket().getFloat();
+                session.getLookSamples().add(rotation.read(0), rotation.read(1));
+            }
+        });
+
+        // Odchozí data map: hráč, který zamčené dílo dostal z cache, nepotřebuje obraz znovu
+        ProtocolLibrary.getProtocolManager().addPacketListener(new PacketAdapter(plugin, PacketType.Play.Server.MAP) {
+            @Override
+            public void onPacketSending(PacketEvent event) {
+                paintingManager.getMapSender().stripServerPixels(event.getPlayer(), event.getPacket());
+            }
+        });
+    }
+
+    // Kliknutí na rám (hlavní vlákno)
+    private void handleInteraction(Player player, int entityId) {
+        Entity entity = ProtocolLibrary.getProtocolManager().getEntityFromID(player.getWorld(), entityId);
+
+        if (entity instanceof ItemFrame frame) {
+            // Kontrola pro ostatní pluginy (např. WorldGuard)
+            org.bukkit.event.player.PlayerInteractEntityEvent checkEvent = new org.bukkit.event.player.PlayerInteractEntityEvent(player, frame);
+            Bukkit.getPluginManager().callEvent(checkEvent);
+
+            // Pokud nějaký plugin interakci zakázal, končíme
+            if (checkEvent.isCancelled()) return;
+
+            ItemStack item = frame.getItem();
+            // Kontrola, zda je ve framu mapa
+            if (item.getType() == Material.FILLED_MAP || item.getType() == Material.MAP) {
+
+                // Kontrola zamčené mapy
+                if (item.hasItemMeta()) {
+                    ItemMeta meta = item.getItemMeta();
+                    if (meta.getPersistentDataContainer().has(keyLocked, PersistentDataType.BYTE)) {
+                        return;
+                    }
+                }
+
+                // Vše v pořádku, předáváme logiku manažerovi
+                paintingManager.updatePaintingState(player, frame);
+            }
+        }
+    }
+
+    // --- GETTERY PRO /artmap stats ---
+
+    public long getInteractionsHandled() {
+        return interactionsHandled.sum();
+    }
+
+    public long getInteractionsMerged() {
+        return interactionsMerged.sum();
+    }
+
+    public long getInteractionsDropped() {
+        return interactionsDropped.sum();
     }
 }
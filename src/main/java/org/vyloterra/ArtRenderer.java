@@ -4,44 +4,279 @@ import org.bukkit.entity.Player;
 import org.bukkit.map.MapCanvas;
 import org.bukkit.map.MapRenderer;
 import org.bukkit.map.MapView;
+import org.vyloterra.util.CanvasCodec;
 import org.vyloterra.util.DataManager;
+import org.vyloterra.util.PixelBufferPool;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 
 public class ArtRenderer extends MapRenderer {
 
-    private final byte[][] pixels = new byte[128][128];
+    public static final int SIZE = 128;
+    public static final int PIXEL_COUNT = SIZE * SIZE;
+
+    // Plátno je rozdělené na 8x8 dlaždic o velikosti 16x16 pixelů.
+    // Každá dlaždice = jeden bit v masce typu long (64 dlaždic = 64 bitů).
+    public static final int TILE_SIZE = 16;
+    public static final int TILES_PER_ROW = SIZE / TILE_SIZE;
+    public static final long ALL_TILES = -1L;
+
+    // Stav plátna v paměti
+    private static final int STATE_LOADING = 0; // data se načítají na pozadí, nesmí se kreslit
+    private static final int STATE_READY = 1;
+    private static final int STATE_EVICTED = 2; // buffer uvolněn, při dalším přístupu se načte znovu
+    private static final int STATE_WARM = 3; // pixely zkomprimované v paměti, rozbalí se při přístupu
+
+    // Komprese se nevyplatí, pokud by data zabrala víc než polovinu bufferu (šum)
+    private static final int MAX_WARM_BYTES = PIXEL_COUNT / 2;
+
+    private final int mapId;
+    private final File dataFolder;
+
+    // Plochý buffer, řádkově: index = y * 128 + x. Null, pokud plátno není v paměti.
+    private byte[] pixels;
+    // Stav WARM: plátno zakódované přes CanvasCodec.encodeFast
+    private byte[] compressed;
     private final Object lock = new Object();
-    private final boolean[] dirtyPixels = new boolean[128 * 128];
 
-    private volatile boolean needsUpdate = true;
-    private boolean fullRenderNeeded = true;
+    private volatile int state;
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    // Verzování: každá změna zvýší verzi plátna a zapíše ji do změněných dlaždic.
+    // Divák si pamatuje poslední viděnou verzi a dostane jen novější dlaždice.
+    // Verze jsou společné všem rendererům: nový renderer téže mapy (znovunačtení,
+    // odemčení) má vždy vyšší verze, než jaké si kdokoli pamatuje ze starého.
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    private volatile long version = VERSIONS.incrementAndGet();
+    private final long[] tileVersions = new long[64];
+
+    // Stav diváků je vázaný na MapCanvas: kontextový renderer má plátno pro každého hráče,
+    // nekontextový jedno sdílené - pak se delta spočítá jen jednou pro všechny diváky.
+    private final Map<MapCanvas, ViewerState> viewers = new WeakHashMap<>();
+
+    // Cache poslední spočítané delty (více diváků na stejné verzi = jeden výpočet)
+    private long cachedDeltaSince = -1L;
+    private long cachedDeltaVersion = -1L;
+    private long cachedDeltaMask = 0L;
+
+    // Dlaždice změněné od posledního uložení a od posledního zápisu do žurnálu
+    private long unsavedTiles = 0L;
+    private long unjournaledTiles = 0L;
+    // Snímky předané k uložení, jejichž výsledek ještě nepřišel
+    private int savesInFlight = 0;
+    // Úlohy ve frontě rasterizace, které plátno potřebují v paměti
+    private int pins = 0;
+
+    private static final class ViewerState {
+        private long seenVersion = 0L;
+    }
+
+    private ArtRenderer(int mapId, File dataFolder) {
+        this.mapId = mapId;
+        this.dataFolder = dataFolder;
+        Arrays.fill(tileVersions, version);
+    }
+
+    /**
+     * Nové prázdné plátno (připravené ke kreslení).
+     */
+    public static ArtRenderer createBlank(int mapId, File dataFolder) {
+        ArtRenderer renderer = new ArtRenderer(mapId, dataFolder);
+        renderer.pixels = new byte[PIXEL_COUNT];
+        renderer.state = STATE_READY;
+        return renderer;
+    }
+
+    /**
+     * Vytvoří renderer hned (prázdný) a uložená data načte na pozadí.
+     * Po načtení se obraz najednou vymění a rozešle divákům.
+     */
+    public static ArtRenderer loadAsync(int mapId, File dataFolder) {
+        ArtRenderer renderer = new ArtRenderer(mapId, dataFolder);
+        renderer.state = STATE_LOADING;
+        DataManager.loadMapAsync(mapId, dataFolder, renderer::finishLoading);
+        return renderer;
+    }
+
+    // Volá vlákno načítání; data == null = mapa zatím nemá uložená data.
+    // Načtené pole je nová kopie, plátno si ho rovnou ponechá.
+    private void finishLoading(byte[] data) {
+        synchronized (lock) {
+            if (state != STATE_LOADING) return;
+            byte[] buffer;
+            if (data != null && data.length == PIXEL_COUNT) {
+                buffer = data;
+            } else {
+                buffer = PixelBufferPool.acquire();
+                Arrays.fill(buffer, (byte) 0);
+            }
+            pixels = buffer;
+
+            // Nová verze všech dlaždic = diváci dostanou celý obraz; načtení není změna k uložení
+            version = VERSIONS.incrementAndGet();
+            Arrays.fill(tileVersions, version);
+            state = STATE_READY;
+        }
+    }
+
+    public int getMapId() {
+        return mapId;
+    }
+
+    /**
+     * Plátno je v paměti a dá se na něj kreslit.
+     */
+    public boolean isLoaded() {
+        return state == STATE_READY;
+    }
 
-    public ArtRenderer(int mapId, File dataFolder) {
-        byte[][] loaded = DataManager.loadMap(mapId, dataFolder);
-        if (loaded != null) {
-            for (int x = 0; x < 128; x++) {
-                System.arraycopy(loaded[x], 0, pixels[x], 0, 128);
+    /**
+     * Zajistí, že plátno bude v paměti (uvolněné se začne načítat na pozadí).
+     * @return true, pokud je plátno připravené už teď
+     */
+    public boolean ensureLoaded() {
+        lastAccess = System.currentTimeMillis();
+        if (state == STATE_READY) return true;
+        synchronized (lock) {
+            if (state == STATE_WARM) return inflate();
+            if (state == STATE_EVICTED) {
+                state = STATE_LOADING;
+                DataManager.loadMapAsync(mapId, dataFolder, this::finishLoading);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Uvolní buffer plátna z paměti. Jen čisté plátno (vše uložené i v žurnálu),
+     * neuložené změny nejdřív zapíše pravidelný autosave.
+     * @return true, pokud se plátno uvolnilo
+     */
+    public boolean evict() {
+        synchronized (lock) {
+            if (state == STATE_WARM) {
+                compressed = null;
+                state = STATE_EVICTED;
+                return true;
             }
+            if (state != STATE_READY || pins != 0 || hasUnsavedChanges()) return false;
+            PixelBufferPool.release(pixels);
+            pixels = null;
+            state = STATE_EVICTED;
+            return true;
         }
     }
 
+    /**
+     * Zkomprimuje pixely čistého plátna v paměti (typicky 3-10x menší).
+     * Při dalším přístupu se synchronně rozbalí, bez čtení z disku.
+     * @return true, pokud se plátno zkomprimovalo
+     */
+    public boolean compress() {
+        synchronized (lock) {
+            if (state != STATE_READY || pins != 0 || hasUnsavedChanges()) return false;
+            byte[] encoded = CanvasCodec.encodeFast(pixels);
+            if (encoded.length > MAX_WARM_BYTES) return false;
+            compressed = encoded;
+            PixelBufferPool.release(pixels);
+            pixels = null;
+            state = STATE_WARM;
+            return true;
+        }
+    }
+
+    // Volat pouze se zámkem
+    private boolean inflate() {
+        try {
+            pixels = CanvasCodec.decode(compressed);
+            state = STATE_READY;
+        } catch (IOException e) {
+            // Nemělo by nastat (data jsme zakódovali sami); plátno se radši načte z disku
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Nelze rozbalit plátno mapy " + mapId, e);
+            state = STATE_LOADING;
+            DataManager.loadMapAsync(mapId, dataFolder, this::finishLoading);
+        }
+        compressed = null;
+        return state == STATE_READY;
+    }
+
+    /**
+     * Úloha ve frontě rasterizace potřebuje plátno: do {@link #unpin()} se neuvolní
+     * ani nezkomprimuje. Každé volání musí mít své unpin.
+     */
+    public void pin() {
+        synchronized (lock) {
+            pins++;
+        }
+    }
+
+    public void unpin() {
+        synchronized (lock) {
+            if (pins > 0) pins--;
+        }
+    }
+
+    public boolean isWarm() {
+        return state == STATE_WARM;
+    }
+
+    /**
+     * Kolik bajtů haldy zabírají pixely plátna (buffer, nebo zkomprimovaná data).
+     */
+    public int getMemoryUsage() {
+        synchronized (lock) {
+            if (pixels != null) return PIXEL_COUNT;
+            return compressed != null ? compressed.length : 0;
+        }
+    }
+
+    public boolean isDirty() {
+        synchronized (lock) {
+            return hasUnsavedChanges();
+        }
+    }
+
+    // Volat pouze se zámkem. Plátno s rozpracovaným uložením se nesmí uvolnit:
+    // dokud se uložení nepotvrdí, disk může mít ještě starší obraz.
+    private boolean hasUnsavedChanges() {
+        return unsavedTiles != 0L || unjournaledTiles != 0L || savesInFlight != 0;
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public static int index(int x, int y) {
+        return (y << 7) | x;
+    }
+
+    public static int tileOf(int x, int y) {
+        return ((y >> 4) << 3) | (x >> 4);
+    }
+
     // --- METODY PRO KYBLÍK A ŠTĚTEC ---
     public byte getPixel(int x, int y) {
-        if (x < 0 || x >= 128 || y < 0 || y >= 128) return 0;
+        if (x < 0 || x >= SIZE || y < 0 || y >= SIZE) return 0;
         synchronized (lock) {
-            return pixels[x][y];
+            if (pixels == null) return 0;
+            return pixels[index(x, y)];
         }
     }
 
     public void drawPixel(int x, int y, byte color) {
-        if (x < 0 || x >= 128 || y < 0 || y >= 128) return;
+        if (x < 0 || x >= SIZE || y < 0 || y >= SIZE) return;
         synchronized (lock) {
-            if (pixels[x][y] != color) {
-                pixels[x][y] = color;
-                dirtyPixels[x * 128 + y] = true;
-                needsUpdate = true;
+            if (pixels == null) return;
+            int i = index(x, y);
+            if (pixels[i] != color) {
+                pixels[i] = color;
+                markTiles(1L << tileOf(x, y));
             }
         }
     }
@@ -50,19 +285,121 @@ public class ArtRenderer extends MapRenderer {
         drawPixel(x, y, color);
     }
 
-    // --- METODY PRO UNDO A MAZÁNÍ (OPRAVENO) ---
+    // --- DÁVKOVÉ KRESLENÍ (TAHY) ---
+
+    /**
+     * Zahájí dávkový tah. Spany se jen zaznamenají do lokálního bufferu
+     * a na plátno se zapíšou najednou v {@link Stroke#commit()} pod jedním zámkem.
+     */
+    public Stroke beginStroke() {
+        return new Stroke();
+    }
+
+    /**
+     * Záznam jednoho tahu štětcem: vodorovné spany (y, x0..x1) s barvou.
+     * Není thread-safe, patří vláknu, které tah kreslí.
+     */
+    public final class Stroke {
+        // Zabalený span: y << 16 | x0 << 8 | x1
+        private int[] spans = new int[64];
+        private byte[] colors = new byte[64];
+        private int count;
+
+        private Stroke() {
+        }
+
+        /**
+         * Zaznamená vodorovný span od x0 do x1 (včetně). Mimo plátno se ořízne.
+         */
+        public void span(int y, int x0, int x1, byte color) {
+            if (y < 0 || y >= SIZE) return;
+            if (x0 < 0) x0 = 0;
+            if (x1 >= SIZE) x1 = SIZE - 1;
+            if (x0 > x1) return;
+
+            if (count == spans.length) {
+                spans = Arrays.copyOf(spans, count * 2);
+                colors = Arrays.copyOf(colors, count * 2);
+            }
+            spans[count] = (y << 16) | (x0 << 8) | x1;
+            colors[count] = color;
+            count++;
+        }
+
+        public void pixel(int x, int y, byte color) {
+            span(y, x, x, color);
+        }
+
+        public ArtRenderer getRenderer() {
+            return ArtRenderer.this;
+        }
+
+        /**
+         * Zapíše všechny spany na plátno (jedno zamčení pro celý tah).
+         * Přepisuje se jen úsek mezi prvním a posledním odlišným pixelem,
+         * takže nezměněné dlaždice se neoznačí a nejdou znovu klientům.
+         */
+        public void commit() {
+            if (count == 0) return;
+            synchronized (lock) {
+                if (pixels == null) {
+                    count = 0;
+                    return;
+                }
+                long changed = 0L;
+                for (int i = 0; i < count; i++) {
+                    int packed = spans[i];
+                    changed |= applySpan(packed >>> 16, (packed >>> 8) & 0xFF, packed & 0xFF, colors[i]);
+                }
+                if (changed != 0L) markTiles(changed);
+            }
+            count = 0;
+        }
+    }
+
+    // Volat pouze se zámkem. Vrací masku změněných dlaždic.
+    private long applySpan(int y, int x0, int x1, byte color) {
+        int row = y << 7;
+        int first = x0;
+        while (first <= x1 && pixels[row | first] == color) first++;
+        if (first > x1) return 0L;
+
+        int last = x1;
+        while (pixels[row | last] == color) last--;
+
+        Arrays.fill(pixels, row | first, (row | last) + 1, color);
+
+        long tiles = 0L;
+        int tileRow = (y >> 4) << 3;
+        for (int t = first >> 4; t <= last >> 4; t++) {
+            tiles |= 1L << (tileRow + t);
+        }
+        return tiles;
+    }
+
+    // --- METODY PRO UNDO A MAZÁNÍ ---
 
     /**
-     * Načte celé pole pixelů (používá se pro UNDO).
+     * Načte celé pole pixelů (používá se pro UNDO a kyblík).
+     * Kopíruje a označuje jen dlaždice, které se opravdu liší.
      */
-    public void loadPixels(byte[][] data) {
-        if (data.length != 128) return;
+    public void loadPixels(byte[] data) {
+        if (data.length != PIXEL_COUNT) return;
         synchronized (lock) {
-            for (int x = 0; x < 128; x++) {
-                System.arraycopy(data[x], 0, pixels[x], 0, 128);
+            if (pixels == null) return;
+            long changed = 0L;
+            for (int tile = 0; tile < 64; tile++) {
+                int tx = (tile & 7) << 4;
+                int ty = (tile >> 3) << 4;
+                for (int y = ty; y < ty + TILE_SIZE; y++) {
+                    int from = index(tx, y);
+                    if (!Arrays.equals(pixels, from, from + TILE_SIZE, data, from, from + TILE_SIZE)) {
+                        System.arraycopy(data, from, pixels, from, TILE_SIZE);
+                        changed |= 1L << tile;
+                    }
+                }
             }
-            fullRenderNeeded = true;
-            needsUpdate = true;
+            if (changed != 0L) markTiles(changed);
         }
     }
 
@@ -71,12 +408,9 @@ public class ArtRenderer extends MapRenderer {
      */
     public void clear(byte color) {
         synchronized (lock) {
-            for (int x = 0; x < 128; x++) {
-                Arrays.fill(pixels[x], color);
-            }
-            fullRenderNeeded = true;
-            needsUpdate = true;
-            Arrays.fill(dirtyPixels, false);
+            if (pixels == null) return;
+            Arrays.fill(pixels, color);
+            markTiles(ALL_TILES);
         }
     }
 
@@ -87,39 +421,171 @@ public class ArtRenderer extends MapRenderer {
         clear((byte) 0);
     }
 
-    // V ArtRenderer.java
-    public byte[][] getPixelsSnapshot() {
-        // Vytvoří hlubokou kopii pole (Deep Copy)
-        byte[][] copy = new byte[128][128];
-        for (int i = 0; i < 128; i++) {
-            System.arraycopy(this.pixels[i], 0, copy[i], 0, 128);
-        }
+    /**
+     * Vrací hlubokou kopii plátna (jedno System.arraycopy místo 128 polí).
+     * Plátno musí být načtené ({@link #isLoaded()}). Kopie je z {@link PixelBufferPool},
+     * po použití ji lze vrátit.
+     */
+    public byte[] getPixelsSnapshot() {
+        byte[] copy = PixelBufferPool.acquire();
+        copyPixels(copy);
         return copy;
     }
 
-    @Override
-    public void render(MapView map, MapCanvas canvas, Player player) {
-        if (!needsUpdate) return;
+    /**
+     * Zkopíruje plátno do existujícího pole (bez alokace).
+     * Plátno musí být načtené; úlohy rasterizace ho drží přes {@link #pin()}.
+     */
+    public void copyPixels(byte[] target) {
+        synchronized (lock) {
+            if (pixels == null) throw new IllegalStateException("Plátno mapy " + mapId + " není načtené");
+            System.arraycopy(pixels, 0, target, 0, PIXEL_COUNT);
+        }
+    }
 
+    /**
+     * Zkopíruje obdélník plátna (řádkově, šířka w) - data pro částečný paket mapy.
+     * @return null, pokud plátno není načtené
+     */
+    public byte[] copyRect(int x, int y, int w, int h) {
+        byte[] rect = new byte[w * h];
         synchronized (lock) {
-            if (fullRenderNeeded) {
-                for (int x = 0; x < 128; x++) {
-                    for (int y = 0; y < 128; y++) {
-                        canvas.setPixel(x, y, pixels[x][y]);
-                    }
+            if (pixels == null) return null;
+            for (int row = 0; row < h; row++) {
+                System.arraycopy(pixels, index(x, y + row), rect, row * w, w);
+            }
+        }
+        return rect;
+    }
+
+    /**
+     * Snapshot pro autosave. Vrací null, pokud se od posledního uložení
+     * nezměnila žádná dlaždice (mapu pak vůbec neukládáme).
+     * Snímek je z {@link PixelBufferPool}, po uložení ho lze vrátit.
+     * Výsledek uložení se musí ohlásit přes {@link #saveFinished(boolean)}.
+     */
+    public byte[] takeSnapshotForSave() {
+        synchronized (lock) {
+            if (unsavedTiles == 0L || pixels == null) return null;
+            unsavedTiles = 0L;
+            savesInFlight++;
+            byte[] copy = PixelBufferPool.acquire();
+            System.arraycopy(pixels, 0, copy, 0, PIXEL_COUNT);
+            return copy;
+        }
+    }
+
+    /**
+     * Výsledek uložení snímku z {@link #takeSnapshotForSave()} (libovolné vlákno).
+     * Při neúspěchu se celé plátno znovu označí jako neuložené.
+     */
+    public void saveFinished(boolean success) {
+        synchronized (lock) {
+            if (savesInFlight > 0) savesInFlight--;
+            if (!success) unsavedTiles = ALL_TILES;
+        }
+    }
+
+    /**
+     * Zkopíruje dlaždice změněné od posledního zápisu do žurnálu.
+     * @param target pole velikosti PIXEL_COUNT, dlaždice se zapíšou na stejné pozice
+     * @return maska zkopírovaných dlaždic (0 = žádná změna)
+     */
+    public long drainJournalTiles(byte[] target) {
+        synchronized (lock) {
+            long mask = unjournaledTiles;
+            unjournaledTiles = 0L;
+            long bits = mask;
+            while (bits != 0L) {
+                int tile = Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int tx = (tile & 7) << 4;
+                int ty = (tile >> 3) << 4;
+                for (int y = ty; y < ty + TILE_SIZE; y++) {
+                    int from = index(tx, y);
+                    System.arraycopy(pixels, from, target, from, TILE_SIZE);
                 }
-                fullRenderNeeded = false;
-            } else {
-                for (int i = 0; i < dirtyPixels.length; i++) {
-                    if (dirtyPixels[i]) {
-                        int x = i >> 7;
-                        int y = i & 127;
-                        canvas.setPixel(x, y, pixels[x][y]);
-                        dirtyPixels[i] = false;
+            }
+            return mask;
+        }
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Maska dlaždic změněných po zadané verzi.
+     */
+    public long getChangedTiles(long sinceVersion) {
+        synchronized (lock) {
+            return deltaMask(sinceVersion);
+        }
+    }
+
+    // Volat pouze se zámkem
+    private void markTiles(long tiles) {
+        long next = VERSIONS.incrementAndGet();
+        long mask = tiles;
+        while (mask != 0L) {
+            int tile = Long.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            tileVersions[tile] = next;
+        }
+        unsavedTiles |= tiles;
+        unjournaledTiles |= tiles;
+        version = next;
+    }
+
+    // Volat pouze se zámkem
+    private long deltaMask(long sinceVersion) {
+        if (sinceVersion == cachedDeltaSince && version == cachedDeltaVersion) {
+            return cachedDeltaMask;
+        }
+        long mask = 0L;
+        for (int tile = 0; tile < 64; tile++) {
+            if (tileVersions[tile] > sinceVersion) mask |= 1L << tile;
+        }
+        cachedDeltaSince = sinceVersion;
+        cachedDeltaVersion = version;
+        cachedDeltaMask = mask;
+        return mask;
+    }
+
+    // setPixel(byte) je v Paper API deprecated, ale plátno už drží barvy palety mapy
+    // a převod přes java.awt.Color by každý pixel zbytečně hledal v paletě
+    @Override
+    @SuppressWarnings("deprecation")
+    public void render(MapView map, MapCanvas canvas, Player player) {
+        synchronized (lock) {
+            if (state == STATE_LOADING) return;
+            if (state == STATE_EVICTED) {
+                // Uvolněné plátno se načte znovu; klient zatím drží poslední obraz
+                ensureLoaded();
+                return;
+            }
+            lastAccess = System.currentTimeMillis();
+            ViewerState viewer = viewers.computeIfAbsent(canvas, c -> new ViewerState());
+            if (viewer.seenVersion == version) return;
+            // Zkomprimované plátno se rozbalí, až když divák opravdu potřebuje nové dlaždice
+            if (state == STATE_WARM && !inflate()) return;
+
+            long mask = deltaMask(viewer.seenVersion);
+            // Procházíme jen nastavené bity (dlaždice, které se změnily)
+            while (mask != 0L) {
+                int tile = Long.numberOfTrailingZeros(mask);
+                mask &= mask - 1;
+
+                int tx = (tile & 7) << 4;
+                int ty = (tile >> 3) << 4;
+                for (int y = ty; y < ty + TILE_SIZE; y++) {
+                    int row = y << 7;
+                    for (int x = tx; x < tx + TILE_SIZE; x++) {
+                        canvas.setPixel(x, y, pixels[row | x]);
                     }
                 }
             }
-            needsUpdate = false;
+            viewer.seenVersion = version;
         }
     }
 }
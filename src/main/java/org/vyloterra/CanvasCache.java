@@ -0,0 +1,118 @@
+package org.vyloterra;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Cache pláten v paměti: uvolňuje buffery map, na které se nikdo nedívá.
+ *
+ * Tři úrovně: horká plátna mají celý buffer, teplá (chvíli bez diváka) jsou
+ * zkomprimovaná v paměti a při přístupu se hned rozbalí, studená jsou jen na disku
+ * a při dalším vykreslení nebo kreslení se načtou na pozadí.
+ * Renderer zůstává připojený k MapView, mění se jen uložení jeho pixelů.
+ * Komprimují a uvolňují se jen čistá plátna; rozpracovaná nejdřív uloží autosave.
+ */
+public class CanvasCache {
+
+    // Pod touto dobou nečinnosti se plátno neuvolní ani při překročení limitu (prevence zahlcení)
+    private static final long MIN_IDLE_MILLIS = 30_000L;
+    // Komprese běží na hlavním vlákně (desítky až stovky µs na plátno); zbytek počká na další běh
+    private static final long COMPRESS_BUDGET_NANOS = 2_000_000L;
+
+    // Renderery drží MapView; po odebrání z mapy (smazání díla) je uvolní GC
+    private final Set<ArtRenderer> renderers = Collections.newSetFromMap(new WeakHashMap<>());
+
+    private long maxBytes;
+    private long warmMillis;
+    private long idleMillis;
+
+    public CanvasCache() {
+        setLimits(256, 60, 600);
+    }
+
+    /**
+     * @param maxMegabytes limit paměti pro pixely všech pláten v paměti
+     * @param warmSeconds  po jaké době bez diváka se plátno zkomprimuje
+     * @param idleSeconds  po jaké době bez diváka se plátno uvolní úplně
+     */
+    public void setLimits(int maxMegabytes, int warmSeconds, int idleSeconds) {
+        this.maxBytes = Math.max(1, maxMegabytes) * 1024L * 1024L;
+        this.warmMillis = Math.max(MIN_IDLE_MILLIS, warmSeconds * 1000L);
+        this.idleMillis = Math.max(warmMillis, idleSeconds * 1000L);
+    }
+
+    public void track(ArtRenderer renderer) {
+        renderers.add(renderer);
+    }
+
+    /**
+     * Pravidelná údržba (hlavní vlákno): nečinná plátna zkomprimuje, dlouho nečinná
+     * uvolní. Pokud se pak pořád nevejdou do limitu, komprimuje a nakonec uvolňuje
+     * nejdéle nepoužitá.
+     */
+    public void maintain() {
+        long now = System.currentTimeMillis();
+        long deadline = System.nanoTime() + COMPRESS_BUDGET_NANOS;
+        List<ArtRenderer> inMemory = new ArrayList<>();
+        long used = 0L;
+        for (ArtRenderer renderer : renderers) {
+            if (!renderer.isLoaded() && !renderer.isWarm()) continue;
+            long idle = now - renderer.getLastAccess();
+            if (idle > idleMillis && renderer.evict()) continue;
+            if (idle > warmMillis && renderer.isLoaded() && System.nanoTime() < deadline) renderer.compress();
+            inMemory.add(renderer);
+            used += renderer.getMemoryUsage();
+        }
+        if (used <= maxBytes) return;
+
+        inMemory.sort(Comparator.comparingLong(ArtRenderer::getLastAccess));
+        // 1. Komprese nejdéle nepoužitých (data zůstanou v paměti)
+        for (ArtRenderer renderer : inMemory) {
+            if (used <= maxBytes || System.nanoTime() >= deadline) break;
+            if (now - renderer.getLastAccess() < MIN_IDLE_MILLIS) break;
+            if (renderer.isLoaded() && renderer.compress()) used -= ArtRenderer.PIXEL_COUNT - renderer.getMemoryUsage();
+        }
+        // 2. Úplné uvolnění
+        for (ArtRenderer renderer : inMemory) {
+            if (used <= maxBytes) return;
+            if (now - renderer.getLastAccess() < MIN_IDLE_MILLIS) break;
+            int size = renderer.getMemoryUsage();
+            if (renderer.evict()) used -= size;
+        }
+    }
+
+    public int getTrackedCount() {
+        return renderers.size();
+    }
+
+    public int getResidentCount() {
+        int count = 0;
+        for (ArtRenderer renderer : renderers) {
+            if (renderer.isLoaded()) count++;
+        }
+        return count;
+    }
+
+    public int getWarmCount() {
+        int count = 0;
+        for (ArtRenderer renderer : renderers) {
+            if (renderer.isWarm()) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Bajty haldy, které zabírají pixely všech pláten (buffery i zkomprimovaná data).
+     */
+    public long getMemoryUsage() {
+        long used = 0L;
+        for (ArtRenderer renderer : renderers) {
+            used += renderer.getMemoryUsage();
+        }
+        return used;
+    }
+}
@@ -0,0 +1,77 @@
+package org.vyloterra;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Natočení hlavy malujícího hráče z paketů pohybu, zachycená mezi dvěma ticky.
+ *
+ * Kruhový buffer pro jednoho zapisovatele (vlákno ProtocolLibu daného hráče) a
+ * jednoho čtenáře (hlavní vlákno), bez zámků. Při zahlcení se nejstarší vzorky
+ * přepíšou; vzorek přepsaný během čtení čtenář pozná a zahodí.
+ */
+public final class LookSamples {
+
+    // Mocnina dvou; vanilla klient posílá nejvýš jeden paket natočení za svůj tick
+    private static final int CAPACITY = 16;
+    private static final int MASK = CAPACITY - 1;
+
+    private final float[] yaws = new float[CAPACITY];
+    private final float[] pitches = new float[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+
+    // Počet zapsaných vzorků (zapisuje jen vlákno ProtocolLibu)
+    private volatile long written;
+    // Počet přečtených vzorků (jen hlavní vlákno)
+    private long read;
+
+    /**
+     * Zapíše vzorek (vlákno ProtocolLibu).
+     */
+    public void add(float yaw, float pitch) {
+        long next = written;
+        int slot = (int) (next & MASK);
+        yaws[slot] = yaw;
+        pitches[slot] = pitch;
+        times[slot] = System.nanoTime();
+        written = next + 1;
+    }
+
+    /**
+     * Zahodí všechny dosud zapsané vzorky (hlavní vlákno, začátek malování).
+     */
+    public void skip() {
+        read = written;
+    }
+
+    /**
+     * Přečte nové vzorky do polí volajícího (hlavní vlákno).
+     * @param since vzorky starší než tento čas (System.nanoTime) se přeskočí
+     * @return počet přečtených vzorků (nejvýš délka polí)
+     */
+    public int drain(float[] yawOut, float[] pitchOut, long since) {
+        long end = written;
+        long start = Math.max(read, end - CAPACITY);
+        int count = 0;
+        for (long i = start; i < end && count < yawOut.length; i++) {
+            int slot = (int) (i & MASK);
+            float yaw = yaws[slot];
+            float pitch = pitches[slot];
+            long time = times[slot];
+            // Čtení slotu se nesmí přesunout za kontrolu počtu zápisů
+            VarHandle.acquireFence();
+            // Zapisovatel buffer oběhl: slot přepisuje vzorek i + CAPACITY už
+            // ve chvíli, kdy written == i + CAPACITY (nový počet ještě nezveřejnil)
+            if (written - i >= CAPACITY) continue;
+            if (time - since < 0) continue;
+            yawOut[count] = yaw;
+            pitchOut[count] = pitch;
+            count++;
+        }
+        read = end;
+        return count;
+    }
+
+    public static int capacity() {
+        return CAPACITY;
+    }
+}
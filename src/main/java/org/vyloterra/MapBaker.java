@@ -0,0 +1,95 @@
+package org.vyloterra;
+
+import org.bukkit.map.MapRenderer;
+import org.bukkit.map.MapView;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+
+/**
+ * "Zapečení" zamčených děl do vanilla dat mapy.
+ *
+ * Pixely se zapíšou do barev mapy (server je sám uloží do data/map_id.dat),
+ * mapa se zamkne a místo ArtRendereru dostane zpět vanilla renderer.
+ * Paper takovou mapu posílá přímo z barev, plugin se při vykreslování vůbec
+ * nevolá a plátno nezabírá paměť. Editovatelná data zůstávají v úložišti
+ * pluginu pro /artmap unlock.
+ */
+public class MapBaker {
+
+    // Reflexe CraftBukkit/NMS, zjistí se podle první mapy
+    private boolean initialized;
+    private boolean available;
+    private Field worldMapField;
+    private Field colorsField;
+    private Method setDirty;
+    private Constructor<?> vanillaRenderer;
+
+    /**
+     * Mapa je zapečená = vanilla zamčená (ArtMap jinak mapy nezamyká).
+     */
+    public static boolean isBaked(MapView view) {
+        return view.isLocked();
+    }
+
+    /**
+     * Zapíše pixely do vanilla mapy a odpojí všechny vlastní renderery.
+     * @return false, pokud to tato verze serveru neumožňuje (mapa zůstane beze změny)
+     */
+    public boolean bake(MapView view, byte[] pixels) {
+        if (!init(view)) return false;
+        try {
+            Object worldMap = worldMapField.get(view);
+            byte[] colors = (byte[]) colorsField.get(worldMap);
+            System.arraycopy(pixels, 0, colors, 0, ArtRenderer.PIXEL_COUNT);
+            setDirty.invoke(worldMap);
+
+            view.setTrackingPosition(false);
+            view.setUnlimitedTracking(false);
+            view.setLocked(true);
+
+            // Jediný vanilla renderer = Paper použije rychlou cestu bez vykreslování
+            view.getRenderers().forEach(view::removeRenderer);
+            view.addRenderer((MapRenderer) vanillaRenderer.newInstance(view, worldMap));
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Nelze zapéct mapu " + view.getId(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Kopie barev vanilla mapy, nebo null.
+     */
+    public byte[] readColors(MapView view) {
+        if (!init(view)) return null;
+        try {
+            byte[] colors = (byte[]) colorsField.get(worldMapField.get(view));
+            return colors.clone();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Nelze přečíst barvy mapy " + view.getId(), e);
+            return null;
+        }
+    }
+
+    private boolean init(MapView view) {
+        if (initialized) return available;
+        initialized = true;
+        try {
+            Class<?> craftView = view.getClass();
+            worldMapField = craftView.getDeclaredField("worldMap");
+            worldMapField.setAccessible(true);
+            Class<?> savedData = worldMapField.getType();
+            colorsField = savedData.getField("colors");
+            setDirty = savedData.getMethod("setDirty");
+            Class<?> rendererClass = Class.forName(craftView.getPackageName() + ".CraftMapRenderer");
+            vanillaRenderer = rendererClass.getConstructor(craftView, savedData);
+            available = true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ArtMapPlugin.getInstance().getLogger().warning("Zapékání zamčených děl není na této verzi serveru dostupné.");
+        }
+        return available;
+    }
+}
@@ -0,0 +1,383 @@
+package org.vyloterra;
+
+import org.vyloterra.util.DataManager;
+import org.vyloterra.util.PixelBufferPool;
+
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+/**
+ * Žurnál změn plátna (write-ahead log).
+ *
+ * Každých pár ticků se do žurnálu připíšou jen dlaždice (16x16), které se od minulého
+ * zápisu změnily. Plné obrázky se přepisují až při kompakci (autosave interval):
+ * žurnál se přepne na nový segment, změněné mapy se uloží celé a staré segmenty se smažou.
+ * Po pádu serveru se segmenty při startu přehrají do uložených map.
+ *
+ * Formát záznamu: int mapId, long maska dlaždic, 256 B za každou dlaždici, int CRC32.
+ * Maska 0 znamená smazání mapy.
+ */
+public class MapJournal {
+
+    private static final String FILE_PREFIX = "wal-";
+    private static final String FILE_EXTENSION = ".log";
+    private static final int TILE_BYTES = ArtRenderer.TILE_SIZE * ArtRenderer.TILE_SIZE;
+
+    private final File folder;
+    private final File dataFolder;
+    // Jedno vlákno = záznamy a kompakce jsou vždy v pořadí
+    private final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ArtMap-Journal-IO");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Hlavní vlákno: záznamy čekající na zápis a pomocné pole pro kopii dlaždic
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+    private final byte[] scratch = new byte[ArtRenderer.PIXEL_COUNT];
+
+    // Vlákno žurnálu
+    private long segment;
+    private OutputStream out;
+    // Mapy, které se při kompakci nepodařilo uložit (jejich data drží jen žurnál)
+    private final Map<Integer, byte[]> failedSaves = new HashMap<>();
+
+    public MapJournal(File dataFolder) {
+        this.dataFolder = dataFolder;
+        this.folder = new File(dataFolder, "journal");
+    }
+
+    /**
+     * Přehraje segmenty z předchozího běhu (po pádu serveru) do uložených map
+     * a smaže je. Volá se jednou při startu, před načtením prvního plátna.
+     * @return počet obnovených map
+     */
+    public int replay() {
+        List<File> segments = listSegments();
+        if (segments.isEmpty()) return 0;
+
+        // null = mapa byla smazána
+        Map<Integer, byte[]> images = new LinkedHashMap<>();
+        for (File file : segments) {
+            readSegment(file, images);
+        }
+
+        segment = segmentNumber(segments.get(segments.size() - 1)) + 1;
+        int restored = 0;
+        for (Map.Entry<Integer, byte[]> entry : images.entrySet()) {
+            if (entry.getValue() == null) {
+                DataManager.deleteMap(entry.getKey(), dataFolder);
+            } else if (DataManager.saveMapSync(entry.getKey(), entry.getValue(), dataFolder)) {
+                restored++;
+            } else {
+                // Segmenty necháme na další pokus
+                return restored;
+            }
+        }
+        for (File file : segments) deleteFile(file);
+        return restored;
+    }
+
+    /**
+     * Zaznamená dlaždice mapy změněné od posledního záznamu (hlavní vlákno).
+     * Na disk jdou až při {@link #flush()}.
+     */
+    public void record(int mapId, ArtRenderer renderer) {
+        long mask = renderer.drainJournalTiles(scratch);
+        if (mask == 0L) return;
+        pending.writeBytes(encodeRecord(mapId, mask, scratch));
+    }
+
+    /**
+     * Zaznamená smazání mapy, aby ji přehrání žurnálu znovu nevytvořilo.
+     */
+    public void recordDelete(int mapId) {
+        pending.writeBytes(encodeRecord(mapId, 0L, null));
+        flush();
+    }
+
+    /**
+     * Zapomene neuložený obrázek mapy, který by příští kompakce zkusila uložit znovu
+     * (mapa se maže). Počká na vlákno žurnálu, takže proběhne po všech dříve
+     * ohlášených neúspěšných uloženích.
+     */
+    public void forget(int mapId) {
+        try {
+            io.submit(() -> failedSaves.remove(mapId)).get();
+        } catch (Exception e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při čekání na žurnál map", e);
+        }
+    }
+
+    /**
+     * Předá nashromážděné záznamy vláknu žurnálu (jeden zápis do souboru).
+     */
+    public void flush() {
+        if (pending.size() == 0) return;
+        byte[] batch = pending.toByteArray();
+        pending = new ByteArrayOutputStream(Math.max(4096, batch.length));
+        io.execute(() -> write(batch));
+    }
+
+    /**
+     * Kompakce: žurnál přejde na nový segment, předané snímky se uloží celé
+     * a starší segmenty se smažou. Snímky musí pokrývat vše zaznamenané
+     * před voláním (volá se hned po {@link #flush()}).
+     * @param onSaved výsledek uložení každého předaného snímku (vlákno ukládání)
+     */
+    public void compact(Map<Integer, byte[]> snapshots, BiConsumer<Integer, Boolean> onSaved) {
+        flush();
+        io.execute(() -> {
+            long oldSegment = segment;
+            openSegment(oldSegment + 1);
+
+            Map<Integer, byte[]> toSave = new HashMap<>(failedSaves);
+            toSave.putAll(snapshots);
+            failedSaves.clear();
+
+            // Staré segmenty se smažou, až doběhnou všechna uložení
+            Runnable deleteOld = () -> {
+                for (File file : listSegments()) {
+                    if (segmentNumber(file) <= oldSegment) deleteFile(file);
+                }
+            };
+            if (toSave.isEmpty()) {
+                deleteOld.run();
+                return;
+            }
+
+            AtomicInteger remaining = new AtomicInteger(toSave.size());
+            for (Map.Entry<Integer, byte[]> entry : toSave.entrySet()) {
+                int mapId = entry.getKey();
+                byte[] pixels = entry.getValue();
+                boolean snapshot = snapshots.containsKey(mapId);
+                DataManager.saveMapAsync(mapId, pixels, dataFolder, success -> {
+                    if (snapshot) onSaved.accept(mapId, success);
+                    if (success) {
+                        PixelBufferPool.release(pixels);
+                    } else {
+                        io.execute(() -> keepFailed(mapId, pixels));
+                    }
+                    if (remaining.decrementAndGet() == 0) io.execute(deleteOld);
+                });
+            }
+        });
+    }
+
+    /**
+     * Dokončí všechny čekající zápisy a zavře žurnál.
+     * Segmenty se smažou jen tehdy, pokud jsou všechny mapy bezpečně uložené.
+     * @param allSaved true, pokud se při vypínání podařilo uložit všechny rozpracované mapy
+     */
+    public void shutdown(boolean allSaved) {
+        flush();
+        io.execute(() -> {
+            closeSegment();
+            if (allSaved && failedSaves.isEmpty()) {
+                for (File file : listSegments()) deleteFile(file);
+            }
+        });
+        io.shutdown();
+        try {
+            if (!io.awaitTermination(30, TimeUnit.SECONDS)) {
+                ArtMapPlugin.getInstance().getLogger().warning("Zápis žurnálu map nestihl doběhnout.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Počká na dokončení zápisů a úkolů žurnálu (před synchronním uložením při vypínání).
+     */
+    public void awaitPending() {
+        try {
+            io.submit(() -> { }).get();
+        } catch (Exception e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při čekání na žurnál map", e);
+        }
+    }
+
+    // --- ZÁPIS (vlákno žurnálu) ---
+
+    private void write(byte[] batch) {
+        try {
+            if (out == null) openSegment(segment);
+            out.write(batch);
+            out.flush();
+        } catch (IOException e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při zápisu žurnálu map", e);
+        }
+    }
+
+    // Uložení selhalo: celý obrázek zůstane v aktuálním segmentu žurnálu
+    private void keepFailed(int mapId, byte[] pixels) {
+        failedSaves.put(mapId, pixels);
+        write(encodeRecord(mapId, ArtRenderer.ALL_TILES, pixels));
+    }
+
+    // Záznam = hlavička, dlaždice z masky (řádek po řádku) a CRC32 přes obojí
+    private static byte[] encodeRecord(int mapId, long mask, byte[] pixels) {
+        int length = 12 + Long.bitCount(mask) * TILE_BYTES;
+        byte[] record = new byte[length + 4];
+        writeInt(record, 0, mapId);
+        writeLong(record, 4, mask);
+        int pos = 12;
+        while (mask != 0L) {
+            int tile = Long.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            int tx = (tile & 7) << 4;
+            int ty = (tile >> 3) << 4;
+            for (int y = ty; y < ty + ArtRenderer.TILE_SIZE; y++) {
+                System.arraycopy(pixels, ArtRenderer.index(tx, y), record, pos, ArtRenderer.TILE_SIZE);
+                pos += ArtRenderer.TILE_SIZE;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, length);
+        writeInt(record, length, (int) crc.getValue());
+        return record;
+    }
+
+    private void openSegment(long number) {
+        closeSegment();
+        segment = number;
+        if (!folder.exists()) folder.mkdirs();
+        try {
+            out = new FileOutputStream(new File(folder, FILE_PREFIX + number + FILE_EXTENSION), true);
+        } catch (IOException e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Nelze otevřít žurnál map", e);
+        }
+    }
+
+    private void closeSegment() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+    }
+
+    // --- ČTENÍ ---
+
+    private void readSegment(File file, Map<Integer, byte[]> images) {
+        CRC32 checksum = new CRC32();
+        byte[] header = new byte[12];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                try {
+                    in.readFully(header);
+                } catch (EOFException end) {
+                    break;
+                }
+                int mapId = readInt(header, 0);
+                long mask = readLong(header, 4);
+                byte[] tiles = new byte[Long.bitCount(mask) * TILE_BYTES];
+                in.readFully(tiles);
+
+                checksum.reset();
+                checksum.update(header);
+                checksum.update(tiles);
+                if (in.readInt() != (int) checksum.getValue()) {
+                    // Poškozený (neúplně zapsaný) záznam = konec platných dat
+                    ArtMapPlugin.getInstance().getLogger().warning("Žurnál " + file.getName() + " obsahuje poškozený záznam, zbytek se přeskočí.");
+                    break;
+                }
+
+                if (mask == 0L) {
+                    images.put(mapId, null);
+                    continue;
+                }
+                byte[] pixels = images.get(mapId);
+                if (pixels == null) {
+                    pixels = images.containsKey(mapId) ? null : DataManager.loadMap(mapId, dataFolder);
+                    if (pixels == null) pixels = new byte[ArtRenderer.PIXEL_COUNT];
+                    images.put(mapId, pixels);
+                }
+                applyTiles(pixels, mask, tiles);
+            }
+        } catch (EOFException e) {
+            // Neúplný poslední záznam (pád serveru uprostřed zápisu)
+        } catch (IOException e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při čtení žurnálu " + file.getName(), e);
+        }
+    }
+
+    private static void applyTiles(byte[] pixels, long mask, byte[] tiles) {
+        int pos = 0;
+        while (mask != 0L) {
+            int tile = Long.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            int tx = (tile & 7) << 4;
+            int ty = (tile >> 3) << 4;
+            for (int y = ty; y < ty + ArtRenderer.TILE_SIZE; y++) {
+                System.arraycopy(tiles, pos, pixels, ArtRenderer.index(tx, y), ArtRenderer.TILE_SIZE);
+                pos += ArtRenderer.TILE_SIZE;
+            }
+        }
+    }
+
+    private List<File> listSegments() {
+        List<File> result = new ArrayList<>();
+        if (!folder.exists()) return result;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder.toPath(), FILE_PREFIX + "*" + FILE_EXTENSION)) {
+            for (Path path : stream) {
+                if (segmentNumber(path.toFile()) >= 0) result.add(path.toFile());
+            }
+        } catch (IOException e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při čtení složky žurnálu", e);
+        }
+        result.sort(Comparator.comparingLong(MapJournal::segmentNumber));
+        return result;
+    }
+
+    private static long segmentNumber(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private static void deleteFile(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void writeInt(byte[] target, int pos, int value) {
+        target[pos] = (byte) (value >>> 24);
+        target[pos + 1] = (byte) (value >>> 16);
+        target[pos + 2] = (byte) (value >>> 8);
+        target[pos + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] target, int pos, long value) {
+        writeInt(target, pos, (int) (value >>> 32));
+        writeInt(target, pos + 4, (int) value);
+    }
+
+    private static int readInt(byte[] source, int pos) {
+        return ((source[pos] & 0xFF) << 24) | ((source[pos + 1] & 0xFF) << 16)
+                | ((source[pos + 2] & 0xFF) << 8) | (source[pos + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] source, int pos) {
+        return ((long) readInt(source, pos) << 32) | (readInt(source, pos + 4) & 0xFFFFFFFFL);
+    }
+}
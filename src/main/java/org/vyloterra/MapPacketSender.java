@@ -0,0 +1,507 @@
+package org.vyloterra;
+
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.reflect.StructureModifier;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.entity.Player;
+import org.bukkit.map.MapView;
+import org.bukkit.util.Vector;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Odesílání změn plátna malujícím hráčům přes ProtocolLib.
+ *
+ * player.sendMap() posílá pokaždé celou mapu (16 kB). Tady se změny sbírají
+ * po mapách a jednou za tick se každému hráči pošle jen obdélník dlaždic,
+ * které se změnily od jeho poslední aktualizace. Hráči se stejným stavem
+ * dostanou stejný paket. Pokud paket nejde sestavit (jiná verze serveru),
+ * použije se zpátky sendMap.
+ *
+ * Zamčená díla (galerie) dostane nový divák z hotového paketu celé mapy, který
+ * se sestaví jednou na verzi plátna. Pixely v prvním paketu od serveru pro
+ * stejnou mapu se pak vypustí, protože je klient už má.
+ *
+ * Diváci malovaného plátna dostávají změny podle vzdálenosti od rámu: blízcí
+ * každý tick a vzdálenější jednou za několik ticků; vanilla pixely stejné mapy
+ * se jim zahazují, dokud se na plátno maluje. Hráče mimo dosah nebo zorné pole
+ * plátno pustí a obsluhuje je vanilla; po návratu dostanou chybějící dlaždice.
+ */
+public class MapPacketSender {
+
+    private static final int TILES_PER_ROW = ArtRenderer.TILES_PER_ROW;
+    private static final int TILE_SIZE = ArtRenderer.TILE_SIZE;
+    // Každý hotový paket drží 16 kB pixelů; nejdéle nepoužité se zahodí
+    private static final int MAX_CACHED_PACKETS = 256;
+    // Po tolika tickách bez změny plátno přestane být živé a diváky převezme vanilla
+    private static final long LIVE_TIMEOUT_TICKS = 40L;
+    // Těsně u rámu se posílá vždy (rám může být na kraji obrazovky)
+    private static final double ALWAYS_VISIBLE_DISTANCE_SQ = 3.0 * 3.0;
+    // Kosinus poloviny zorného kužele (~75°, širší než zorné pole klienta)
+    private static final double VIEW_CONE_COS = 0.25;
+
+    // Reflexe NMS (Paper 1.21, mojang mapování)
+    private Constructor<?> packetConstructor;
+    private Constructor<?> mapIdConstructor;
+    private Constructor<?> patchConstructor;
+    private Method mapIdValue;
+    private Method patchWidth;
+    private Method patchHeight;
+    private boolean available;
+    private boolean enabled = true;
+
+    // Vzdálenosti diváků (na druhou) a interval pro vzdálené diváky
+    private double nearDistanceSq = 16.0 * 16.0;
+    private double maxDistanceSq = 48.0 * 48.0;
+    private int farInterval = 5;
+
+    // Mapy změněné v tomto ticku a hráči, kterým se mají poslat
+    private final Map<Integer, PendingMap> pending = new LinkedHashMap<>();
+    // Poslední verze plátna, kterou hráč od nás dostal
+    private final Map<Player, ViewerState> viewers = new WeakHashMap<>();
+    // Hotové pakety celých map zamčených děl (LRU)
+    private final Map<Integer, CachedPacket> fullPackets = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, CachedPacket> eldest) {
+            return size() > MAX_CACHED_PACKETS;
+        }
+    };
+    // Mapy, které hráč dostal z cache dřív než od serveru (čte i vlákno ProtocolLibu)
+    private final Map<UUID, Set<Integer>> primed = new ConcurrentHashMap<>();
+    // Právě malovaná plátna a mapy, jejichž vanilla pixely hráč nedostává (čte i vlákno ProtocolLibu)
+    private final Map<Integer, LiveMap> live = new HashMap<>();
+    private final Map<UUID, Set<Integer>> owned = new ConcurrentHashMap<>();
+    private long tick;
+
+    // --- STATISTIKY ---
+    private long packetsSent;
+    private long bytesSent;
+    private long cacheHits;
+    private long cacheMisses;
+    private long spectatorPackets;
+    private long spectatorDeferred;
+
+    private record CachedPacket(ArtRenderer renderer, long version, PacketContainer packet) {
+    }
+
+    private static final class PendingMap {
+        private final MapView view;
+        private final ArtRenderer renderer;
+        private final Set<Player> players = new LinkedHashSet<>();
+
+        private PendingMap(MapView view, ArtRenderer renderer) {
+            this.view = view;
+            this.renderer = renderer;
+        }
+    }
+
+    private static final class LiveMap {
+        private ItemFrame frame;
+        private final MapView view;
+        private ArtRenderer renderer;
+        private long lastChange;
+        // Hráči, kterým plátno posíláme místo vanilla
+        private final Set<Player> viewers = new HashSet<>();
+
+        private LiveMap(ItemFrame frame, MapView view, ArtRenderer renderer) {
+            this.frame = frame;
+            this.view = view;
+            this.renderer = renderer;
+        }
+    }
+
+    private static final class ViewerState {
+        private World world;
+        private final Map<Integer, Long> sentVersions = new HashMap<>();
+    }
+
+    public MapPacketSender() {
+        try {
+            Class<?> mapIdClass = Class.forName("net.minecraft.world.level.saveddata.maps.MapId");
+            Class<?> patchClass = Class.forName("net.minecraft.world.level.saveddata.maps.MapItemSavedData$MapPatch");
+            Class<?> packetClass = Class.forName("net.minecraft.network.protocol.game.ClientboundMapItemDataPacket");
+            mapIdConstructor = mapIdClass.getConstructor(int.class);
+            patchConstructor = patchClass.getConstructor(int.class, int.class, int.class, int.class, byte[].class);
+            mapIdValue = mapIdClass.getMethod("id");
+            patchWidth = patchClass.getMethod("width");
+            patchHeight = patchClass.getMethod("height");
+            packetConstructor = packetClass.getConstructor(mapIdClass, byte.class, boolean.class, Optional.class, Optional.class);
+            available = true;
+        } catch (ReflectiveOperationException e) {
+            ArtMapPlugin.getInstance().getLogger().warning("Částečné pakety map nejsou na této verzi serveru dostupné, posílají se celé mapy.");
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (!enabled) releaseAll();
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param nearBlocks  do této vzdálenosti dostávají diváci změny každý tick
+     * @param maxBlocks   dál se divákům neposílá nic (doplní se, až přijdou blíž)
+     * @param farInterval po kolika tickách dostávají změny vzdálenější diváci
+     */
+    public void setSpectatorLimits(int nearBlocks, int maxBlocks, int farInterval) {
+        int max = Math.max(1, maxBlocks);
+        int near = Math.min(Math.max(0, nearBlocks), max);
+        this.nearDistanceSq = (double) near * near;
+        this.maxDistanceSq = (double) max * max;
+        this.farInterval = Math.max(1, farInterval);
+    }
+
+    /**
+     * Naplánuje odeslání změn mapy hráči (na konci ticku, viz {@link #flush()}).
+     */
+    public void send(Player player, MapView view, ArtRenderer renderer) {
+        if (!enabled || !available) {
+            player.sendMap(view);
+            return;
+        }
+        pending.computeIfAbsent(view.getId(), id -> new PendingMap(view, renderer)).players.add(player);
+    }
+
+    /**
+     * Jako {@link #send(Player, MapView, ArtRenderer)}, navíc změnu dostanou i diváci
+     * okolo rámu (plátno se stane živým, dokud se na něj maluje).
+     */
+    public void send(Player player, ItemFrame frame, MapView view, ArtRenderer renderer) {
+        send(player, view, renderer);
+        if (!enabled || !available) return;
+        LiveMap map = live.computeIfAbsent(view.getId(), id -> new LiveMap(frame, view, renderer));
+        map.frame = frame;
+        map.renderer = renderer;
+        map.lastChange = tick;
+    }
+
+    /**
+     * Odešle naplánované změny malujícím a divákům živých pláten (hlavní vlákno, jednou za tick).
+     */
+    public void flush() {
+        tick++;
+        if (pending.isEmpty() && live.isEmpty()) return;
+        for (PendingMap map : pending.values()) {
+            LiveMap liveMap = live.get(map.view.getId());
+            // Verze se čte před maskou i pixely: tahy dokreslené mezitím jiným vláknem
+            // se hráči pošlou znovu v dalším ticku, nikdy se neztratí
+            long version = map.renderer.getVersion();
+            // Stejná maska změn = stejný paket pro všechny hráče
+            Map<Long, PacketContainer> packets = new HashMap<>(4);
+
+            for (Player player : map.players) {
+                if (!player.isOnline()) continue;
+                if (liveMap != null) own(player, liveMap);
+                sendDelta(player, map.view, map.renderer, version, packets);
+            }
+            if (liveMap != null) updateSpectators(liveMap, map.players, version, packets);
+        }
+
+        Iterator<LiveMap> it = live.values().iterator();
+        while (it.hasNext()) {
+            LiveMap liveMap = it.next();
+            if (tick - liveMap.lastChange > LIVE_TIMEOUT_TICKS || !liveMap.frame.isValid()) {
+                release(liveMap);
+                it.remove();
+            } else if (!pending.containsKey(liveMap.view.getId())) {
+                // Bez změny v tomto ticku: doplnění divákům, kteří se otočili nebo přišli blíž
+                updateSpectators(liveMap, Collections.emptySet(), liveMap.renderer.getVersion(), new HashMap<>(4));
+            }
+        }
+        pending.clear();
+    }
+
+    // Diváci živého plátna podle vzdálenosti a zorného pole
+    private void updateSpectators(LiveMap map, Set<Player> painters, long version, Map<Long, PacketContainer> packets) {
+        int mapId = map.view.getId();
+        Location center = map.frame.getLocation();
+        Vector facing = map.frame.getFacing().getDirection();
+        // Vzdálení diváci různých map dostávají změny v různých tickách
+        boolean farTick = (tick + mapId) % farInterval == 0;
+
+        for (Player player : center.getWorld().getPlayers()) {
+            if (painters.contains(player)) continue;
+            Location eye = player.getEyeLocation();
+            double dx = center.getX() - eye.getX();
+            double dy = center.getY() - eye.getY();
+            double dz = center.getZ() - eye.getZ();
+            double distanceSq = dx * dx + dy * dy + dz * dz;
+            // Mimo dosah nebo zorné pole plátno obsluhuje zase vanilla;
+            // po návratu hráč dostane změny od své poslední verze
+            if (distanceSq > maxDistanceSq
+                    || distanceSq > ALWAYS_VISIBLE_DISTANCE_SQ && !isInView(eye, dx, dy, dz, distanceSq, facing)) {
+                disown(player, map);
+                continue;
+            }
+
+            own(player, map);
+            Long seen = viewerState(player).sentVersions.get(mapId);
+            if (seen != null && seen == version) continue;
+
+            if (distanceSq > nearDistanceSq && !farTick) {
+                spectatorDeferred++;
+                continue;
+            }
+            if (sendDelta(player, map.view, map.renderer, version, packets)) spectatorPackets++;
+        }
+    }
+
+    // Rám je před hráčem (v zorném kuželi) a hráč se nedívá na jeho zadní stranu
+    private static boolean isInView(Location eye, double dx, double dy, double dz, double distanceSq, Vector facing) {
+        if (facing.getX() * dx + facing.getY() * dy + facing.getZ() * dz >= 0) return false;
+        Vector look = eye.getDirection();
+        double dot = look.getX() * dx + look.getY() * dy + look.getZ() * dz;
+        return dot >= VIEW_CONE_COS * Math.sqrt(distanceSq);
+    }
+
+    // Pošle hráči dlaždice změněné od jeho poslední verze; version = verze plátna přečtená
+    // před sestavením paketů (pixely v paketu jsou stejně nové nebo novější)
+    // false = nebylo co poslat
+    private boolean sendDelta(Player player, MapView view, ArtRenderer renderer, long version,
+                              Map<Long, PacketContainer> packets) {
+        int mapId = view.getId();
+        ViewerState state = viewerState(player);
+        Long seen = state.sentVersions.get(mapId);
+        long mask = seen == null ? ArtRenderer.ALL_TILES : renderer.getChangedTiles(seen);
+        if (mask == 0L) return false;
+
+        PacketContainer packet = packets.get(mask);
+        if (packet == null) {
+            packet = createPacket(view, renderer, mask);
+            if (packet == null) {
+                player.sendMap(view);
+                state.sentVersions.remove(mapId);
+                return false;
+            }
+            packets.put(mask, packet);
+        }
+        // Bez filtrů: vlastní pakety nesmí projít přes stripServerPixels
+        ProtocolLibrary.getProtocolManager().sendServerPacket(player, packet, false);
+        state.sentVersions.put(mapId, version);
+        packetsSent++;
+        bytesSent += rectBytes(mask);
+        return true;
+    }
+
+    private void own(Player player, LiveMap map) {
+        // Po změně světa se stav hráče vynuluje dřív, než si ho plátno převezme
+        viewerState(player);
+        if (!map.viewers.add(player)) return;
+        owned.computeIfAbsent(player.getUniqueId(), id -> ConcurrentHashMap.newKeySet()).add(map.view.getId());
+    }
+
+    private void disown(Player player, LiveMap map) {
+        if (!map.viewers.remove(player)) return;
+        Set<Integer> maps = owned.get(player.getUniqueId());
+        if (maps != null) maps.remove(map.view.getId());
+    }
+
+    // Plátno přestalo být živé: diváci dostanou zbytek změn a dál je obsluhuje vanilla
+    private void release(LiveMap map) {
+        int mapId = map.view.getId();
+        long version = map.renderer.getVersion();
+        Map<Long, PacketContainer> packets = new HashMap<>(4);
+        List<Player> players = new ArrayList<>(map.viewers);
+        map.viewers.clear();
+        for (Player player : players) {
+            Set<Integer> maps = owned.get(player.getUniqueId());
+            if (maps != null) maps.remove(mapId);
+            if (player.isOnline() && player.getWorld() == map.frame.getWorld()) {
+                sendDelta(player, map.view, map.renderer, version, packets);
+            }
+        }
+    }
+
+    private void releaseAll() {
+        if (available) {
+            for (LiveMap map : live.values()) release(map);
+        }
+        live.clear();
+        owned.clear();
+    }
+
+    /**
+     * Pošle hráči celou mapu z cache hotových paketů (nový divák zamčeného díla).
+     * Paket se sestaví znovu jen po změně verze plátna. Plátno uvolněné z paměti
+     * se kvůli tomu nenačítá: poslat jde jen paket, který je v cache pro aktuální verzi.
+     * @return false, pokud se nic neposlalo (hráč mapu už má, nebo paket nejde sestavit)
+     */
+    public boolean sendCached(Player player, MapView view, ArtRenderer renderer) {
+        if (!enabled || !available) return false;
+        int mapId = view.getId();
+        long version = renderer.getVersion();
+
+        ViewerState state = viewerState(player);
+        Long seen = state.sentVersions.get(mapId);
+        if (seen != null && seen == version) return false;
+
+        CachedPacket cached = fullPackets.get(mapId);
+        if (cached == null || cached.renderer() != renderer || cached.version() != version) {
+            // Nenačtené plátno pošle server sám, až ho hráč opravdu uvidí
+            if (!renderer.isLoaded()) return false;
+            PacketContainer packet = createPacket(view, renderer, ArtRenderer.ALL_TILES);
+            if (packet == null) return false;
+            cached = new CachedPacket(renderer, version, packet);
+            fullPackets.put(mapId, cached);
+            cacheMisses++;
+        } else {
+            cacheHits++;
+        }
+
+        ProtocolLibrary.getProtocolManager().sendServerPacket(player, cached.packet(), false);
+        primed.computeIfAbsent(player.getUniqueId(), id -> ConcurrentHashMap.newKeySet()).add(mapId);
+        state.sentVersions.put(mapId, version);
+        packetsSent++;
+        bytesSent += ArtRenderer.PIXEL_COUNT;
+        return true;
+    }
+
+    /**
+     * Odchozí paket mapy od serveru (libovolné vlákno). Pokud hráč tutéž mapu
+     * celou dostal z cache, první celý obraz od serveru se zahodí (ikony zůstanou).
+     * Pixely živého plátna, které hráči posíláme sami, se zahodí vždy.
+     */
+    public void stripServerPixels(Player player, PacketContainer packet) {
+        if (!available) return;
+        Set<Integer> primedMaps = primed.get(player.getUniqueId());
+        Set<Integer> ownedMaps = owned.get(player.getUniqueId());
+        if ((primedMaps == null || primedMaps.isEmpty()) && (ownedMaps == null || ownedMaps.isEmpty())) return;
+        try {
+            int mapId = (int) mapIdValue.invoke(packet.getModifier().read(0));
+            boolean isOwned = ownedMaps != null && ownedMaps.contains(mapId);
+            if (!isOwned && (primedMaps == null || !primedMaps.remove(mapId))) return;
+
+            // [0] = ikony, [1] = pixely
+            StructureModifier<Optional<?>> optionals = packet.getModifier().withType(Optional.class);
+            Optional<?> patch = optionals.read(1);
+            // Z cache jen celý obraz; dílčí změna je novější než náš paket
+            if (patch != null && patch.isPresent() && (isOwned
+                    || (int) patchWidth.invoke(patch.get()) == ArtRenderer.SIZE
+                    && (int) patchHeight.invoke(patch.get()) == ArtRenderer.SIZE)) {
+                optionals.write(1, Optional.empty());
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.WARNING, "Nelze upravit paket mapy", e);
+        }
+    }
+
+    /**
+     * Zapomene stav mapy u všech hráčů (např. po smazání díla).
+     */
+    public void forget(int mapId) {
+        pending.remove(mapId);
+        fullPackets.remove(mapId);
+        live.remove(mapId);
+        for (ViewerState state : viewers.values()) {
+            state.sentVersions.remove(mapId);
+        }
+        for (Set<Integer> maps : primed.values()) {
+            maps.remove(mapId);
+        }
+        for (Set<Integer> maps : owned.values()) {
+            maps.remove(mapId);
+        }
+    }
+
+    public void forgetPlayer(Player player) {
+        viewers.remove(player);
+        primed.remove(player.getUniqueId());
+        owned.remove(player.getUniqueId());
+        for (LiveMap map : live.values()) {
+            map.viewers.remove(player);
+        }
+    }
+
+    private ViewerState viewerState(Player player) {
+        ViewerState state = viewers.computeIfAbsent(player, p -> new ViewerState());
+        if (state.world != player.getWorld()) {
+            // Po změně světa klient zapomíná data map
+            state.world = player.getWorld();
+            state.sentVersions.clear();
+            Set<Integer> maps = owned.get(player.getUniqueId());
+            if (maps != null) maps.clear();
+            for (LiveMap map : live.values()) {
+                map.viewers.remove(player);
+            }
+        }
+        return state;
+    }
+
+    // Paket s obdélníkem, který pokrývá všechny dlaždice z masky
+    private PacketContainer createPacket(MapView view, ArtRenderer renderer, long mask) {
+        int[] rect = tileRect(mask);
+        int x = rect[0] * TILE_SIZE;
+        int y = rect[1] * TILE_SIZE;
+        int w = (rect[2] - rect[0] + 1) * TILE_SIZE;
+        int h = (rect[3] - rect[1] + 1) * TILE_SIZE;
+
+        byte[] colors = renderer.copyRect(x, y, w, h);
+        if (colors == null) return null;
+        try {
+            Object mapId = mapIdConstructor.newInstance(view.getId());
+            Object patch = patchConstructor.newInstance(x, y, w, h, colors);
+            // Prázdné ikony = klient si ponechá současné
+            Object handle = packetConstructor.newInstance(mapId, view.getScale().getValue(), view.isLocked(),
+                    Optional.empty(), Optional.of(patch));
+            return PacketContainer.fromPacket(handle);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Nelze sestavit paket mapy, posílají se celé mapy", e);
+            available = false;
+            return null;
+        }
+    }
+
+    // [minTx, minTy, maxTx, maxTy] dlaždic z masky (8 bitů = jeden řádek dlaždic)
+    private static int[] tileRect(long mask) {
+        int minTy = Long.numberOfTrailingZeros(mask) / TILES_PER_ROW;
+        int maxTy = (63 - Long.numberOfLeadingZeros(mask)) / TILES_PER_ROW;
+        int columns = 0;
+        for (int ty = minTy; ty <= maxTy; ty++) {
+            columns |= (int) (mask >>> (ty * TILES_PER_ROW)) & 0xFF;
+        }
+        int minTx = Integer.numberOfTrailingZeros(columns);
+        int maxTx = 31 - Integer.numberOfLeadingZeros(columns);
+        return new int[]{minTx, minTy, maxTx, maxTy};
+    }
+
+    private static int rectBytes(long mask) {
+        int[] rect = tileRect(mask);
+        return (rect[2] - rect[0] + 1) * (rect[3] - rect[1] + 1) * TILE_SIZE * TILE_SIZE;
+    }
+
+    // --- GETTERY PRO /artmap stats ---
+
+    public boolean isActive() {
+        return enabled && available;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    public long getSpectatorPackets() {
+        return spectatorPackets;
+    }
+
+    public long getSpectatorDeferred() {
+        return spectatorDeferred;
+    }
+}
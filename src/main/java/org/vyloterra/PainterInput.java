@@ -0,0 +1,114 @@
+package org.vyloterra;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.BlockFace;
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.entity.Player;
+import org.bukkit.util.BoundingBox;
+import org.bukkit.util.Vector;
+import org.vyloterra.util.ArtMath;
+
+/**
+ * Vstup malujícího hráče v jednom ticku: paprsek z očí, zásah rámu a bod na plátně.
+ *
+ * Spočítá se jednou za tick a všechny nástroje (kontrola regionu, štětec,
+ * kapátko, reset, tvary) čtou stejný výsledek. Objekt patří hráči a používá se
+ * znovu; průsečík paprsku s rámem se počítá bez alokací.
+ */
+public final class PainterInput {
+
+    private long tick = -1L;
+    private ItemFrame frame;
+
+    private boolean hit;
+    private double hitX;
+    private double hitY;
+    private double hitZ;
+
+    private boolean onCanvas;
+    private final int[] canvas = new int[2];
+
+    /**
+     * Spočítá vstup pro aktuální tick. Další volání ve stejném ticku pro stejný
+     * rám vrátí uložený výsledek.
+     * @return true, pokud paprsek zasáhl rám
+     */
+    public boolean sample(Player player, ItemFrame frame, double maxDistance, long tick) {
+        if (this.tick == tick && this.frame == frame) return hit;
+        this.tick = tick;
+        this.frame = frame;
+        hit = false;
+        onCanvas = false;
+
+        Location eye = player.getEyeLocation();
+        Vector direction = eye.getDirection();
+        BoundingBox box = frame.getBoundingBox();
+        double distance = ArtMath.rayTraceBox(eye.getX(), eye.getY(), eye.getZ(),
+                direction.getX(), direction.getY(), direction.getZ(),
+                box.getMinX(), box.getMinY(), box.getMinZ(), box.getMaxX(), box.getMaxY(), box.getMaxZ(),
+                maxDistance);
+        if (distance < 0) return false;
+
+        hit = true;
+        hitX = eye.getX() + direction.getX() * distance;
+        hitY = eye.getY() + direction.getY() * distance;
+        hitZ = eye.getZ() + direction.getZ() * distance;
+        onCanvas = ArtMath.getCanvasCoordinates(hitX - box.getCenterX(), hitY - box.getCenterY(), hitZ - box.getCenterZ(),
+                frame.getFacing(), canvas);
+        return true;
+    }
+
+    /**
+     * Promítne natočení hlavy (z paketu mezi ticky) z daného místa očí na plátno.
+     * Směr se počítá stejně jako {@link Location#getDirection()}.
+     * @return false, pokud paprsek rám mine nebo zásah neleží na plátně
+     */
+    public static boolean project(Location eye, float yaw, float pitch, BoundingBox box, BlockFace face,
+                                  double maxDistance, int[] out) {
+        double yawRad = Math.toRadians(yaw);
+        double pitchRad = Math.toRadians(pitch);
+        double xz = Math.cos(pitchRad);
+        double dx = -xz * Math.sin(yawRad);
+        double dy = -Math.sin(pitchRad);
+        double dz = xz * Math.cos(yawRad);
+
+        double distance = ArtMath.rayTraceBox(eye.getX(), eye.getY(), eye.getZ(), dx, dy, dz,
+                box.getMinX(), box.getMinY(), box.getMinZ(), box.getMaxX(), box.getMaxY(), box.getMaxZ(),
+                maxDistance);
+        if (distance < 0) return false;
+
+        return ArtMath.getCanvasCoordinates(eye.getX() + dx * distance - box.getCenterX(),
+                eye.getY() + dy * distance - box.getCenterY(),
+                eye.getZ() + dz * distance - box.getCenterZ(), face, out);
+    }
+
+    /**
+     * Paprsek zasáhl rám.
+     */
+    public boolean hasHit() {
+        return hit;
+    }
+
+    /**
+     * Zásah leží na plátně (rám na stěně, ne na podlaze/stropu).
+     */
+    public boolean isOnCanvas() {
+        return onCanvas;
+    }
+
+    public int getCanvasX() {
+        return canvas[0];
+    }
+
+    public int getCanvasY() {
+        return canvas[1];
+    }
+
+    /**
+     * Nová lokace místa zásahu (pro částice, zvuky a kontrolu regionu).
+     */
+    public Location getHitLocation(World world) {
+        return new Location(world, hitX, hitY, hitZ);
+    }
+}
@@ -0,0 +1,93 @@
+package org.vyloterra;
+
+import org.bukkit.entity.ItemFrame;
+import org.bukkit.entity.Player;
+
+/**
+ * Veškerý stav jednoho hráče v ArtMapu (režim, štětec, rozpracovaný tah, cooldowny).
+ *
+ * Vzniká při první interakci hráče a žije do jeho odpojení; smyčka kreslení tak
+ * za tick udělá jedno vyhledání v registru místo desítky map podle UUID.
+ *
+ * Vlákna: pole mění jen hlavní vlákno. Z jiných vláken (ProtocolLib) se smí číst
+ * jen volatile pole {@link #activeFrame} a {@link #lastInteraction} a zapisovat
+ * do {@link #looks}.
+ */
+public final class PainterSession {
+
+    final Player player;
+
+    // Nastavení hráče
+    PaintingManager.PaintMode mode = PaintingManager.PaintMode.FREEHAND;
+    int brushLevel;
+
+    // Rozpracované malování (null = hráč právě nemaluje)
+    volatile ItemFrame activeFrame;
+    volatile long lastInteraction;
+
+    // Poslední bod volné ruky (pro spojování čar)
+    boolean hasLastPixel;
+    int lastMapId;
+    int lastX;
+    int lastY;
+    // Bod před posledním (řídicí bod vyhlazení)
+    boolean hasPrevPixel;
+    int prevX;
+    int prevY;
+
+    // Krok UNDO otevřený tahy volné ruky/spreje (null = žádný)
+    ArtRenderer stepRenderer;
+    int stepMapId;
+
+    // Bod A u tvarů
+    boolean hasShapeStart;
+    int shapeStartX;
+    int shapeStartY;
+
+    // Časy posledního použití (ms)
+    long lastPipette;
+    long lastReset;
+    long lastRegionCheck;
+    long lastModeSwitch;
+
+    // Paprsek a zásah plátna v aktuálním ticku
+    final PainterInput input = new PainterInput();
+
+    // Natočení hlavy z paketů mezi ticky a pracovní pole pro vyhlazený tah
+    final LookSamples looks = new LookSamples();
+    final float[] sampleYaws = new float[LookSamples.capacity()];
+    final float[] samplePitches = new float[LookSamples.capacity()];
+    final int[] pathX = new int[LookSamples.capacity() + 3];
+    final int[] pathY = new int[LookSamples.capacity() + 3];
+    final int[] canvasPoint = new int[2];
+
+    PainterSession(Player player) {
+        this.player = player;
+    }
+
+    public Player getPlayer() {
+        return player;
+    }
+
+    public PaintingManager.PaintMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Rám, na který hráč právě maluje, nebo null. Lze číst z libovolného vlákna.
+     */
+    public ItemFrame getActiveFrame() {
+        return activeFrame;
+    }
+
+    /**
+     * Buffer natočení hlavy; plní ho posluchač paketů ProtocolLibu.
+     */
+    public LookSamples getLookSamples() {
+        return looks;
+    }
+
+    public boolean isPainting() {
+        return activeFrame != null;
+    }
+}
@@ -2,6 +2,7 @@ package org.vyloterra;
 
 import net.kyori.adventure.text.serializer.legacy.LegacyComponentSerializer;
 import org.bukkit.*;
+import org.bukkit.block.BlockFace;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.ItemFrame;
 import org.bukkit.entity.Player;
@@ -10,17 +11,22 @@ import org.bukkit.inventory.meta.MapMeta;
 import org.bukkit.map.MapView;
 import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.scheduler.BukkitTask;
-import org.bukkit.util.RayTraceResult;
+import org.bukkit.util.BoundingBox;
 import org.vyloterra.util.ArtEffects;
 import org.vyloterra.util.ArtMath;
 import org.vyloterra.util.ColorUtil;
 import org.vyloterra.util.DataManager;
 import org.vyloterra.util.Lang;
+import org.vyloterra.util.PixelBufferPool;
+import org.vyloterra.util.RasterExecutor;
 import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.persistence.PersistentDataType;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 public class PaintingManager {
 
@@ -42,16 +48,31 @@ public class PaintingManager {
         }
     }
 
+    // Výsledek /artmap name pro zapečení díla
+    public enum BakeResult {
+        /** Zapékání je vypnuté, mapa už je zapečená nebo to server neumí */
+        SKIPPED,
+        /** Data se ukládají, mapa se zapeče hned po uložení */
+        STARTED,
+        /** Plátno není v paměti; zapeče se, až se načte */
+        DEFERRED
+    }
+
     private final ArtMapPlugin plugin;
 
+    // Natočení hlavy starší než tohle do tahu nepatří (zpožděné pakety po laggu)
+    private static final long LOOK_SAMPLE_MAX_AGE_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
 
     // --- CONFIG CACHE ---
     private int brushMedium, brushLarge;
     private double paintDistance;
+    private boolean smoothStrokes;
     private boolean allowPipette, allowEraser, allowReset;
     private boolean enableParticles, enableHandSwing;
     private boolean allowFill, allowGlow;
     private int autosaveInterval;
+    private int journalInterval;
 
     // Survival & Worlds
     private boolean consumeDyes;
@@ -61,39 +82,90 @@ public class PaintingManager {
     private double cooldownResetTime;
 
     // --- SESSION DATA ---
-    private final Map<UUID, Long> lastInteractionTime = new ConcurrentHashMap<>();
-    private final Map<UUID, ItemFrame> activeFrames = new ConcurrentHashMap<>();
-    private final Map<UUID, int[]> lastPixelPositions = new HashMap<>();
-    private final Map<UUID, Integer> brushLevels = new HashMap<>();
+    // Stav hráčů: jeden objekt na hráče (zapisuje jen hlavní vlákno, viz PainterSession)
+    private final Map<UUID, PainterSession> sessions = new ConcurrentHashMap<>();
     private final Set<Integer> dirtyMaps = Collections.newSetFromMap(new ConcurrentHashMap<>());
     private final Random random = new Random();
     private final NamespacedKey keyCreated;
 
-
-    // --- NOVÁ DATA PRO TVARY ---
-    private final Map<UUID, PaintMode> playerModes = new HashMap<>();
-    private final Map<UUID, int[]> shapeStartPoints = new HashMap<>(); // Ukládá Bod A [x, y]
-
-    // --- COOLDOWNS ---
-    private final Map<UUID, Long> cooldownPipette = new HashMap<>();
-    private final Map<UUID, Long> cooldownReset = new HashMap<>();
-    private final Map<UUID, Long> lastRegionCheck = new HashMap<>();
     // --- UNDO SYSTÉM ---
-    private final Map<Integer, Deque<byte[][]>> undoHistory = new ConcurrentHashMap<>();
+    private final UndoHistory undoHistory;
     private int maxUndoSteps;
+    private int undoMemorySteps;
+    private int undoIdleSeconds;
+    private int undoMemoryMb;
+
+    // --- ŽURNÁL ZMĚN ---
+    private final MapJournal journal;
+
+    // --- CACHE PLÁTEN ---
+    private final CanvasCache canvasCache = new CanvasCache();
+    private int canvasCacheMb;
+    private int canvasWarmSeconds;
+    private int canvasIdleSeconds;
+
+    // --- KRESLENÍ MIMO HLAVNÍ VLÁKNO ---
+    private final RasterExecutor rasterizer;
+    private final Queue<FinishedStroke> finishedStrokes = new ConcurrentLinkedQueue<>();
+
+    // frame == null: změna bez rámu (UNDO/REDO z příkazu)
+    private record FinishedStroke(Player player, ItemFrame frame, MapView view, ArtRenderer renderer) {
+    }
+    // Výsledky úloh z front map pro hlavní vlákno (zprávy hráčům po UNDO/REDO)
+    private final Queue<Runnable> laneResults = new ConcurrentLinkedQueue<>();
+
+    // --- ODESÍLÁNÍ ZMĚN HRÁČŮM ---
+    private final MapPacketSender mapSender;
+
+    // --- ZAPÉKÁNÍ ZAMČENÝCH DĚL ---
+    private final MapBaker mapBaker = new MapBaker();
+    private boolean bakeLockedMaps;
+    // Díla čekající na načtení plátna, a díla, jejichž data se právě ukládají před zapečením
+    private final Set<Integer> pendingBakes = new HashSet<>();
+    private final Set<Integer> bakesInFlight = new HashSet<>();
 
     private BukkitTask saveTask;
+    private BukkitTask journalTask;
+    private BukkitTask maintenanceTask;
 
     public PaintingManager(ArtMapPlugin plugin) {
         this.plugin = plugin;
         this.keyCreated = new NamespacedKey(plugin, "artmap_created");
+        this.undoHistory = new UndoHistory(plugin.getDataFolder());
+        this.journal = new MapJournal(plugin.getDataFolder());
+        this.mapSender = new MapPacketSender();
+        this.rasterizer = new RasterExecutor(plugin.getConfig().getInt("performance.raster-threads", 2));
+
+        // Obnova map po pádu serveru (ještě před načtením prvního plátna)
+        int restored = journal.replay();
+        if (restored > 0) plugin.getLogger().info("Ze žurnálu obnoveno " + restored + " map.");
 
         reloadValues();
         startPaintingLoop();
     }
 
-    public Map<UUID, ItemFrame> getActiveFrames() {
-        return activeFrames;
+    /**
+     * Stav hráče; vznikne při první interakci (hlavní vlákno).
+     */
+    public PainterSession getSession(Player player) {
+        return sessions.computeIfAbsent(player.getUniqueId(), id -> new PainterSession(player));
+    }
+
+    /**
+     * Stav hráče, nebo null, pokud s ArtMapem zatím nic nedělal. Lze volat z libovolného vlákna.
+     */
+    public PainterSession findSession(UUID playerId) {
+        return sessions.get(playerId);
+    }
+
+    /**
+     * Někdo právě maluje na tento rám.
+     */
+    public boolean isBeingPainted(ItemFrame frame) {
+        for (PainterSession session : sessions.values()) {
+            if (session.activeFrame == frame) return true;
+        }
+        return false;
     }
 
     public void reloadValues() {
@@ -102,12 +174,14 @@ public class PaintingManager {
         this.brushMedium = config.getInt("brush-sizes.medium", 2);
         this.brushLarge = config.getInt("brush-sizes.large", 5);
         this.paintDistance = config.getDouble("gameplay.paint-distance", 5.0);
+        this.smoothStrokes = config.getBoolean("gameplay.smooth-strokes", true);
         this.allowPipette = config.getBoolean("gameplay.allow-pipette", true);
         this.allowEraser = config.getBoolean("gameplay.allow-eraser", true);
         this.allowReset = config.getBoolean("gameplay.allow-reset", true);
         this.enableParticles = config.getBoolean("visuals.enable-particles", true);
         this.enableHandSwing = config.getBoolean("visuals.enable-hand-swing", true);
-        this.autosaveInterval = config.getInt("performance.autosave-interval", 30);
+        this.autosaveInterval = config.getInt("performance.autosave-interval", 300);
+        this.journalInterval = config.getInt("performance.journal-interval", 5);
         this.allowedWorlds = config.getStringList("allowed-worlds");
         this.cooldownPipetteTime = config.getDouble("cooldowns.pipette", 1.0);
         this.cooldownResetTime = config.getDouble("cooldowns.reset", 10.0);
@@ -116,6 +190,19 @@ public class PaintingManager {
         this.allowFill = config.getBoolean("gameplay.allow-fill", true);
         this.allowGlow = config.getBoolean("gameplay.allow-glow", true);
         this.maxUndoSteps = config.getInt("performance.undo-steps", 50);
+        this.undoMemorySteps = config.getInt("performance.undo-memory-steps", 10);
+        this.undoIdleSeconds = config.getInt("performance.undo-idle-seconds", 300);
+        this.undoMemoryMb = config.getInt("performance.undo-memory-mb", 64);
+        undoHistory.setLimits(maxUndoSteps, undoMemorySteps, undoIdleSeconds, undoMemoryMb * 1024L * 1024L);
+        this.canvasCacheMb = config.getInt("performance.canvas-cache-mb", 256);
+        this.canvasWarmSeconds = config.getInt("performance.canvas-warm-seconds", 60);
+        this.canvasIdleSeconds = config.getInt("performance.canvas-idle-seconds", 600);
+        canvasCache.setLimits(canvasCacheMb, canvasWarmSeconds, canvasIdleSeconds);
+        mapSender.setEnabled(config.getBoolean("performance.partial-map-packets", true));
+        mapSender.setSpectatorLimits(config.getInt("performance.spectator-near-distance", 16),
+                config.getInt("performance.spectator-max-distance", 48),
+                config.getInt("performance.spectator-far-interval", 5));
+        this.bakeLockedMaps = config.getBoolean("performance.bake-locked-maps", true);
         if (this.consumptionChance < 1) this.consumptionChance = 1;
 
         startSaveTask();
@@ -123,11 +210,11 @@ public class PaintingManager {
 
     // --- PŘEPÍNÁNÍ REŽIMŮ ---
     public void cyclePaintMode(Player player) {
-        PaintMode current = playerModes.getOrDefault(player.getUniqueId(), PaintMode.FREEHAND);
-        PaintMode next = PaintMode.values()[(current.ordinal() + 1) % PaintMode.values().length];
+        PainterSession session = getSession(player);
+        PaintMode next = PaintMode.values()[(session.mode.ordinal() + 1) % PaintMode.values().length];
 
-        playerModes.put(player.getUniqueId(), next);
-        shapeStartPoints.remove(player.getUniqueId()); // Reset bodu při změně
+        session.mode = next;
+        session.hasShapeStart = false; // Reset bodu při změně
 
         Lang.sendActionBar(player, "prefix", "&eRežim: &f" + next.getLabel());
         player.playSound(player.getLocation(), Sound.UI_BUTTON_CLICK, 0.6f, 1.5f);
@@ -135,13 +222,14 @@ public class PaintingManager {
 
     // --- HLAVNÍ UPDATE (Pravé kliknutí) ---
     public void updatePaintingState(Player player, ItemFrame frame) {
+        PainterSession session = getSession(player);
         if (!isWorldAllowed(player.getWorld().getName()) && !player.hasPermission("artmap.bypass.worlds")) {
-            if (!activeFrames.containsKey(player.getUniqueId())) Lang.sendActionBar(player, "world-disabled", null);
+            if (!session.isPainting()) Lang.sendActionBar(player, "world-disabled", null);
             return;
         }
 
         if (!canPaintAtLocation(player, frame.getLocation())) {
-            if (!activeFrames.containsKey(player.getUniqueId())) Lang.sendActionBar(player, "region-disabled", null);
+            if (!session.isPainting()) Lang.sendActionBar(player, "region-disabled", null);
             return;
         }
 
@@ -173,43 +261,33 @@ public class PaintingManager {
                 Lang.sendActionBar(player, "tool-disabled", null);
                 return;
             }
-            handleBucketFill(player, frame);
+            handleBucketFill(session, frame);
             return;
         }
 
         // START MALOVÁNÍ
-        PaintMode mode = playerModes.getOrDefault(player.getUniqueId(), PaintMode.FREEHAND);
+        PaintMode mode = session.mode;
 
         if (mode == PaintMode.FREEHAND || mode == PaintMode.SPRAY) {
-            // Freehand/Sprej řeší smyčka paintTick
-            if (!activeFrames.containsKey(player.getUniqueId())) {
-                createUndoSnapshot(player, frame);
+            // Freehand/Sprej řeší smyčka paintTick; krok UNDO otevře až první tah
+            if (session.activeFrame != null && session.activeFrame != frame) {
+                endSessionUndoStep(session);
             }
-            lastInteractionTime.put(player.getUniqueId(), System.currentTimeMillis());
-            activeFrames.put(player.getUniqueId(), frame);
+            session.lastInteraction = System.currentTimeMillis();
+            session.activeFrame = frame;
         } else {
             // Tvary (Čára, Čtverec...) řešíme kliknutím
-            handleShapeClick(player, frame, mode);
+            handleShapeClick(session, frame, mode);
         }
     }
 
     // --- Logika pro tvary (2 kliknutí) ---
-    private void handleShapeClick(Player player, ItemFrame frame, PaintMode mode) {
-        RayTraceResult result = frame.getBoundingBox().rayTrace(
-                player.getEyeLocation().toVector(),
-                player.getEyeLocation().getDirection(),
-                paintDistance
-        );
-
-        if (result == null) return;
-
-        int[] coords = ArtMath.getCanvasCoordinates(
-                result.getHitPosition(),
-                frame.getBoundingBox().getCenter(),
-                frame.getFacing()
-        );
-
-        if (coords == null) return;
+    private void handleShapeClick(PainterSession session, ItemFrame frame, PaintMode mode) {
+        Player player = session.player;
+        PainterInput input = sampleInput(session, frame);
+        if (!input.isOnCanvas()) return;
+        int x = input.getCanvasX();
+        int y = input.getCanvasY();
 
         ItemStack hand = player.getInventory().getItemInMainHand();
         ItemStack offHand = player.getInventory().getItemInOffHand();
@@ -217,20 +295,24 @@ public class PaintingManager {
 
         if (dyeItem == null && hand.getType() != Material.SPONGE) return;
 
-        if (!shapeStartPoints.containsKey(player.getUniqueId())) {
+        if (!session.hasShapeStart) {
             // 1. Kliknutí: Bod A
-            shapeStartPoints.put(player.getUniqueId(), coords);
+            session.hasShapeStart = true;
+            session.shapeStartX = x;
+            session.shapeStartY = y;
             Lang.sendActionBar(player, "prefix", "&aBod A nastaven. Klikni pro bod B.");
             player.playSound(player.getLocation(), Sound.BLOCK_LEVER_CLICK, 0.5f, 2.0f);
         } else {
             // 2. Kliknutí: Vykreslení
-            int[] start = shapeStartPoints.remove(player.getUniqueId());
+            session.hasShapeStart = false;
+            int startX = session.shapeStartX;
+            int startY = session.shapeStartY;
 
             MapView view = getOrConvertMapView(frame, player, true);
             if (view == null) return;
 
-            createUndoSnapshot(player, frame);
             ArtRenderer renderer = getOrCreateRenderer(view);
+            if (renderer == null) return;
 
             byte color;
             if (hand.getType() == Material.SPONGE) {
@@ -241,46 +323,50 @@ public class PaintingManager {
                 color = ColorUtil.getShadedColor(baseColor, secondary);
             }
 
-            int radius = getBrushRadius(player);
+            int radius = getBrushRadius(session);
+            int mapId = view.getId();
 
-            switch (mode) {
-                case LINE: ArtMath.drawLine(renderer, start[0], start[1], coords[0], coords[1], radius, color); break;
-                case SQUARE: ArtMath.drawRectangle(renderer, start[0], start[1], coords[0], coords[1], radius, color); break;
-                case CIRCLE: ArtMath.drawCircle(renderer, start[0], start[1], coords[0], coords[1], radius, color); break;
-            }
+            submitStroke(player, frame, view, renderer, () -> {
+                undoHistory.beginStep(mapId, renderer);
+                switch (mode) {
+                    case LINE: ArtMath.drawLine(renderer, startX, startY, x, y, radius, color); break;
+                    case SQUARE: ArtMath.drawRectangle(renderer, startX, startY, x, y, radius, color); break;
+                    case CIRCLE: ArtMath.drawCircle(renderer, startX, startY, x, y, radius, color); break;
+                }
+                undoHistory.endStep(mapId, renderer);
+            });
 
             consumeDye(player, hand, dyeItem);
 
             player.playSound(player.getLocation(), Sound.ITEM_BOOK_PAGE_TURN, 1.0f, 1.0f);
-            player.sendMap(view);
-            dirtyMaps.add(view.getId());
 
             Lang.sendActionBar(player, "prefix", "&aTvar vykreslen!");
         }
     }
 
-    private void handleBucketFill(Player player, ItemFrame frame) {
+    private void handleBucketFill(PainterSession session, ItemFrame frame) {
+        Player player = session.player;
         ItemStack offHand = player.getInventory().getItemInOffHand();
         if (ColorUtil.isValidDye(offHand.getType())) {
-            RayTraceResult result = frame.getBoundingBox().rayTrace(
-                    player.getEyeLocation().toVector(),
-                    player.getEyeLocation().getDirection(),
-                    paintDistance
-            );
-
-            if (result != null) {
-                int[] coords = ArtMath.getCanvasCoordinates(result.getHitPosition(), frame.getBoundingBox().getCenter(), frame.getFacing());
-                if (coords != null) {
+            PainterInput input = sampleInput(session, frame);
+            if (input.hasHit()) {
+                if (input.isOnCanvas()) {
                     MapView view = getOrConvertMapView(frame, player, true);
-                    if (view != null) {
-                        createUndoSnapshot(player, frame);
-                        ArtRenderer renderer = getOrCreateRenderer(view);
+                    ArtRenderer renderer = view != null ? getOrCreateRenderer(view) : null;
+                    if (renderer != null) {
                         byte fillColor = ColorUtil.getMapColor(offHand.getType());
+                        int mapId = view.getId();
+                        int x = input.getCanvasX();
+                        int y = input.getCanvasY();
 
-                        ArtMath.runFloodFill(renderer, coords[0], coords[1], fillColor);
+                        // Vyplňování celé plochy je nejdražší nástroj, běží mimo hlavní vlákno
+                        submitStroke(player, frame, view, renderer, () -> {
+                            undoHistory.beginStep(mapId, renderer);
+                            ArtMath.runFloodFill(renderer, x, y, fillColor);
+                            undoHistory.endStep(mapId, renderer);
+                        });
 
                         player.playSound(player.getLocation(), Sound.ITEM_BUCKET_EMPTY, 1.0f, 1.0f);
-                        player.sendMap(view);
                     }
                 }
             }
@@ -295,63 +381,98 @@ public class PaintingManager {
             @Override
             public void run() {
                 long now = System.currentTimeMillis();
-                Iterator<Map.Entry<UUID, Long>> it = lastInteractionTime.entrySet().iterator();
-
-                while (it.hasNext()) {
-                    Map.Entry<UUID, Long> entry = it.next();
-                    UUID uuid = entry.getKey();
 
-                    // Timeout po 250ms neaktivity
-                    if (now - entry.getValue() > 250) {
-                        it.remove();
-                        removePainterData(uuid);
-                        continue;
-                    }
-
-                    Player player = Bukkit.getPlayer(uuid);
-                    if (player == null || !player.isOnline()) {
-                        it.remove();
-                        removePainterData(uuid);
-                        continue;
-                    }
+                for (PainterSession session : sessions.values()) {
+                    ItemFrame frame = session.activeFrame;
+                    if (frame == null) continue;
 
-                    ItemFrame frame = activeFrames.get(uuid);
-                    if (frame == null || !frame.isValid()) {
-                        it.remove();
-                        removePainterData(uuid);
+                    // Timeout po 250ms neaktivity, odpojený hráč nebo zničený rám
+                    if (now - session.lastInteraction > 250 || !session.player.isOnline() || !frame.isValid()) {
+                        stopPainting(session);
                         continue;
                     }
 
-                    PaintMode mode = playerModes.getOrDefault(uuid, PaintMode.FREEHAND);
+                    PaintMode mode = session.mode;
 
                     // Pokud je ve Freehand nebo Spray módu -> Kreslí
                     if (mode == PaintMode.FREEHAND || mode == PaintMode.SPRAY) {
-                        paintTick(player, frame);
+                        paintTick(session, frame);
                     } else {
                         // Pokud je v módu tvarů -> Ukazuje náhled
-                        if (shapeStartPoints.containsKey(uuid)) {
-                            showShapePreview(player, frame);
+                        if (session.hasShapeStart) {
+                            showShapePreview(session, frame);
                         }
                     }
                 }
+
+                // Změny všech map z tohoto ticku najednou (jeden paket na mapu a stav hráče).
+                // Tahy, které vlákna rasterizace ještě nedokreslila, se pošlou v dalším ticku.
+                publishStrokes();
+                mapSender.flush();
             }
         }.runTaskTimer(plugin, 1L, 1L);
     }
 
-    private void removePainterData(UUID uuid) {
-        activeFrames.remove(uuid);
-        lastPixelPositions.remove(uuid);
+    // Vstup hráče pro aktuální tick (kliknutí ve stejném ticku jako smyčka ho nepočítá znovu)
+    private PainterInput sampleInput(PainterSession session, ItemFrame frame) {
+        session.input.sample(session.player, frame, paintDistance, Bukkit.getCurrentTick());
+        return session.input;
+    }
+
+    private void stopPainting(PainterSession session) {
+        ItemFrame frame = session.activeFrame;
+        session.activeFrame = null;
+        session.hasLastPixel = false;
+        if (frame != null) endSessionUndoStep(session);
+    }
+
+    /**
+     * Body tahu volné ruky za tento tick do session.pathX/pathY:
+     * bod před posledním (jen řídicí), poslední bod, natočení hlavy z paketů
+     * promítnutá na plátno a nakonec bod z aktuálního ticku.
+     * Pozice očí je ta ze serveru (mezi ticky se hráč posune zanedbatelně).
+     * @return počet bodů (alespoň 2)
+     */
+    private int buildStrokePath(PainterSession session, ItemFrame frame, int cx, int cy) {
+        int[] xs = session.pathX;
+        int[] ys = session.pathY;
+        xs[0] = session.hasPrevPixel ? session.prevX : session.lastX;
+        ys[0] = session.hasPrevPixel ? session.prevY : session.lastY;
+        xs[1] = session.lastX;
+        ys[1] = session.lastY;
+        int points = 2;
+
+        int samples = session.looks.drain(session.sampleYaws, session.samplePitches,
+                System.nanoTime() - LOOK_SAMPLE_MAX_AGE_NANOS);
+        if (samples > 0) {
+            Location eye = session.player.getEyeLocation();
+            BoundingBox box = frame.getBoundingBox();
+            BlockFace face = frame.getFacing();
+            int[] point = session.canvasPoint;
+            for (int i = 0; i < samples; i++) {
+                if (!PainterInput.project(eye, session.sampleYaws[i], session.samplePitches[i],
+                        box, face, paintDistance, point)) continue;
+                if (point[0] == xs[points - 1] && point[1] == ys[points - 1]) continue;
+                xs[points] = point[0];
+                ys[points] = point[1];
+                points++;
+            }
+        }
+
+        if (cx != xs[points - 1] || cy != ys[points - 1]) {
+            xs[points] = cx;
+            ys[points] = cy;
+            points++;
+        }
+        return points;
     }
 
-    private void showShapePreview(Player player, ItemFrame frame) {
-        RayTraceResult result = frame.getBoundingBox().rayTrace(
-                player.getEyeLocation().toVector(),
-                player.getEyeLocation().getDirection(),
-                paintDistance
-        );
+    private void showShapePreview(PainterSession session, ItemFrame frame) {
+        Player player = session.player;
+        PainterInput input = sampleInput(session, frame);
 
-        if (result != null) {
-            Location hitLoc = result.getHitPosition().toLocation(player.getWorld());
+        if (input.hasHit()) {
+            Location hitLoc = input.getHitLocation(player.getWorld());
             hitLoc.add(frame.getFacing().getDirection().multiply(0.05));
             player.spawnParticle(Particle.DUST, hitLoc, 1, 0.0, 0.0, 0.0, new Particle.DustOptions(Color.RED, 0.5f));
         }
@@ -359,29 +480,27 @@ public class PaintingManager {
 
     // --- KRESLENÍ (1 TICK) ---
     // KRESLENÍ JEDEN TICK (Volná ruka a Sprej)
-    private void paintTick(Player player, ItemFrame frame) {
+    private void paintTick(PainterSession session, ItemFrame frame) {
+        Player player = session.player;
+        // Kam se hráč dívá - jeden paprsek za tick pro všechny nástroje
+        PainterInput input = sampleInput(session, frame);
+
         // 1. Ochrana: Kontrola regionu (WorldGuard) jednou za sekundu
         // Zabrání hráči vejít do cizího regionu se stisknutým tlačítkem a malovat dál.
         long now = System.currentTimeMillis();
-        if (now - lastRegionCheck.getOrDefault(player.getUniqueId(), 0L) > 1000) {
-            RayTraceResult checkResult = frame.getBoundingBox().rayTrace(
-                    player.getEyeLocation().toVector(),
-                    player.getEyeLocation().getDirection(),
-                    paintDistance
-            );
-
-            if (checkResult != null) {
-                Location hitLoc = checkResult.getHitPosition().toLocation(player.getWorld());
+        if (now - session.lastRegionCheck > 1000) {
+            if (input.hasHit()) {
+                Location hitLoc = input.getHitLocation(player.getWorld());
                 if (!canPaintAtLocation(player, hitLoc)) {
                     endSession(player); // Ukončit malování
                     Lang.sendActionBar(player, "region-disabled", "&cZde nemůžeš malovat!");
                     return;
                 }
             }
-            lastRegionCheck.put(player.getUniqueId(), now);
+            session.lastRegionCheck = now;
         }
 
-        PaintMode mode = playerModes.getOrDefault(player.getUniqueId(), PaintMode.FREEHAND);
+        PaintMode mode = session.mode;
 
         // Zde povolíme i SPRAY
         if (mode != PaintMode.FREEHAND && mode != PaintMode.SPRAY) return;
@@ -397,11 +516,17 @@ public class PaintingManager {
 
         // 3. Nástroje (Kapátko, Reset)
         if (hand.getType() == Material.FEATHER) {
-            if (allowPipette && checkCooldown(player, cooldownPipette, cooldownPipetteTime)) handlePipette(player, frame);
+            if (allowPipette && checkCooldown(player, session.lastPipette, cooldownPipetteTime)) {
+                session.lastPipette = now;
+                handlePipette(player, frame, input);
+            }
             return;
         }
         if (hand.getType() == Material.WET_SPONGE) {
-            if (allowReset && checkCooldown(player, cooldownReset, cooldownResetTime)) handleReset(player, frame);
+            if (allowReset && checkCooldown(player, session.lastReset, cooldownResetTime)) {
+                session.lastReset = now;
+                handleReset(player, frame, input);
+            }
             return;
         }
 
@@ -421,27 +546,19 @@ public class PaintingManager {
 
         if (dyeItem == null) return; // Nemá barvu -> nic
 
-        // 5. RayTrace (Kam se dívá?)
-        RayTraceResult result = frame.getBoundingBox().rayTrace(
-                player.getEyeLocation().toVector(),
-                player.getEyeLocation().getDirection(),
-                paintDistance
-        );
-
-        if (result == null) return;
+        // 5. Zásah rámu (spočítaný na začátku ticku)
+        if (!input.hasHit()) return;
 
         // 6. Příprava Rendereru
         MapView view = getOrConvertMapView(frame, player, true);
         if (view == null) return;
 
         ArtRenderer renderer = getOrCreateRenderer(view);
-        int[] coords = ArtMath.getCanvasCoordinates(
-                result.getHitPosition(),
-                frame.getBoundingBox().getCenter(),
-                frame.getFacing()
-        );
+        if (renderer == null) return;
+        if (input.isOnCanvas()) {
+            int cx = input.getCanvasX();
+            int cy = input.getCanvasY();
 
-        if (coords != null) {
             // --- VÝPOČET BARVY A EFEKTŮ ---
             byte primaryColor;
             byte secondaryColor = 0;
@@ -465,45 +582,65 @@ public class PaintingManager {
                 }
             }
 
-            int radius = getBrushRadius(player);
+            int radius = getBrushRadius(session);
 
             // --- VYKRESLOVÁNÍ ---
+            // Tady se jen rozhodne, co se kreslí; do plátna tah zapíše vlákno rasterizace
+            byte color1 = primaryColor;
+            byte color2 = secondaryColor;
+            int brush = radius;
+            Runnable draw;
 
             if (mode == PaintMode.SPRAY) {
                 // SPREJ:
                 int density = (radius + 1) * 3;
-                ArtMath.drawSpray(renderer, coords[0], coords[1], radius + 2, primaryColor, density);
-                lastPixelPositions.remove(player.getUniqueId()); // U spreje neinterpolujeme
+                draw = () -> ArtMath.drawSpray(renderer, cx, cy, brush + 2, color1, density);
+                session.hasLastPixel = false; // U spreje neinterpolujeme
+                session.looks.skip();
 
             } else {
                 // VOLNÁ RUKA (Tužka / Míchání):
-                int[] last = lastPixelPositions.get(player.getUniqueId());
-
-                if (last != null && last[0] == view.getId()) {
-                    double distance = Math.sqrt(Math.pow(coords[0] - last[1], 2) + Math.pow(coords[1] - last[2], 2));
-
+                boolean continues = session.hasLastPixel && session.lastMapId == view.getId();
+
+                if (isMixing) {
+                    // Míchání: pouze body (čára by zkazila šachovnici)
+                    draw = () -> ArtMath.drawMix(renderer, cx, cy, brush, color1, color2);
+                    session.looks.skip();
+                } else if (continues && smoothStrokes) {
+                    // Vyhlazená čára přes natočení hlavy zachycená mezi ticky
+                    int points = buildStrokePath(session, frame, cx, cy);
+                    int[] xs = Arrays.copyOf(session.pathX, points);
+                    int[] ys = Arrays.copyOf(session.pathY, points);
+                    draw = () -> ArtMath.drawSpline(renderer, xs, ys, 1, brush, color1);
+                    session.hasPrevPixel = true;
+                    session.prevX = xs[points - 2];
+                    session.prevY = ys[points - 2];
+                } else if (continues) {
+                    int lastX = session.lastX;
+                    int lastY = session.lastY;
+                    double distance = Math.sqrt(Math.pow(cx - lastX, 2) + Math.pow(cy - lastY, 2));
                     // Interpolace (spojování čar, aby nebyly mezery při rychlém pohybu)
-                    if (distance > 0 && distance < 40) {
-                        if (isMixing) {
-                            // Míchání: pouze body (čára by zkazila šachovnici)
-                            ArtMath.drawMix(renderer, coords[0], coords[1], radius, primaryColor, secondaryColor);
-                        } else {
-                            // Klasická čára
-                            ArtMath.drawLine(renderer, last[1], last[2], coords[0], coords[1], radius, primaryColor);
-                        }
+                    if (distance > 0 && distance < ArtMath.MAX_CONNECT_DISTANCE) {
+                        // Klasická čára
+                        draw = () -> ArtMath.drawLine(renderer, lastX, lastY, cx, cy, brush, color1);
                     } else {
                         // Skok nebo stání na místě
-                        if (isMixing) ArtMath.drawMix(renderer, coords[0], coords[1], radius, primaryColor, secondaryColor);
-                        else ArtMath.drawPencil(renderer, coords[0], coords[1], radius, primaryColor);
+                        draw = () -> ArtMath.drawPencil(renderer, cx, cy, brush, color1);
                     }
                 } else {
-                    // První kliknutí
-                    if (isMixing) ArtMath.drawMix(renderer, coords[0], coords[1], radius, primaryColor, secondaryColor);
-                    else ArtMath.drawPencil(renderer, coords[0], coords[1], radius, primaryColor);
+                    // První kliknutí: starší natočení patří k jinému tahu
+                    draw = () -> ArtMath.drawPencil(renderer, cx, cy, brush, color1);
+                    session.looks.skip();
+                    session.hasPrevPixel = false;
                 }
 
-                lastPixelPositions.put(player.getUniqueId(), new int[]{view.getId(), coords[0], coords[1]});
+                session.hasLastPixel = true;
+                session.lastMapId = view.getId();
+                session.lastX = cx;
+                session.lastY = cy;
             }
+            beginSessionUndoStep(session, view.getId(), renderer);
+            submitStroke(player, frame, view, renderer, draw);
 
             // 7. Spotřeba a Efekty
             if (!isEraser || hand.getType() == Material.SPONGE) {
@@ -513,7 +650,7 @@ public class PaintingManager {
             // OPTIMALIZACE ČÁSTIC: Zobrazit jen každý 4. tick (cca každých 200ms)
             // Tím se zabrání FPS dropům u klientů.
             if (enableParticles && (System.currentTimeMillis() / 50) % 4 == 0) {
-                Location loc = result.getHitPosition().toLocation(player.getWorld());
+                Location loc = input.getHitLocation(player.getWorld());
                 if (isEraser) {
                     player.getWorld().spawnParticle(Particle.CLOUD, loc, 1, 0.05, 0.05, 0.05, 0.01);
                 } else if (mode == PaintMode.SPRAY) {
@@ -524,9 +661,6 @@ public class PaintingManager {
             }
 
             if (enableHandSwing) player.swingMainHand();
-
-            dirtyMaps.add(view.getId());
-            player.sendMap(view);
         }
     }
 
@@ -554,30 +688,31 @@ public class PaintingManager {
         }
     }
 
-    private void handleReset(Player player, ItemFrame frame) {
-        RayTraceResult result = frame.getBoundingBox().rayTrace(player.getEyeLocation().toVector(), player.getEyeLocation().getDirection(), paintDistance);
-        if (result == null) return;
+    private void handleReset(Player player, ItemFrame frame, PainterInput input) {
+        if (!input.hasHit()) return;
         MapView view = getOrConvertMapView(frame, player, true);
         if (view == null) return;
-        createUndoSnapshot(player, frame);
         ArtRenderer renderer = getOrCreateRenderer(view);
-        renderer.clear((byte) 34); // Bílá
-        player.getWorld().playSound(result.getHitPosition().toLocation(player.getWorld()), Sound.ITEM_BUCKET_EMPTY, 0.8f, 1.2f);
-        if (enableParticles) player.getWorld().spawnParticle(Particle.SPLASH, result.getHitPosition().toLocation(player.getWorld()), 20, 0.3, 0.3, 0.3, 0.1);
+        if (renderer == null) return;
+        int mapId = view.getId();
+        submitStroke(player, frame, view, renderer, () -> {
+            undoHistory.beginStep(mapId, renderer);
+            renderer.clear((byte) 34); // Bílá
+            undoHistory.endStep(mapId, renderer);
+        });
+        Location hitLoc = input.getHitLocation(player.getWorld());
+        player.getWorld().playSound(hitLoc, Sound.ITEM_BUCKET_EMPTY, 0.8f, 1.2f);
+        if (enableParticles) player.getWorld().spawnParticle(Particle.SPLASH, hitLoc, 20, 0.3, 0.3, 0.3, 0.1);
         if (enableHandSwing) player.swingMainHand();
-        dirtyMaps.add(view.getId());
-        player.sendMap(view);
     }
 
-    private void handlePipette(Player player, ItemFrame frame) {
-        RayTraceResult result = frame.getBoundingBox().rayTrace(player.getEyeLocation().toVector(), player.getEyeLocation().getDirection(), paintDistance);
-        if (result == null) return;
-        int[] coords = ArtMath.getCanvasCoordinates(result.getHitPosition(), frame.getBoundingBox().getCenter(), frame.getFacing());
-        if (coords == null) return;
+    private void handlePipette(Player player, ItemFrame frame, PainterInput input) {
+        if (!input.isOnCanvas()) return;
         MapView view = getOrConvertMapView(frame, player, false);
         if (view == null) return;
         ArtRenderer renderer = getOrCreateRenderer(view);
-        byte colorId = renderer.getPixel(coords[0], coords[1]);
+        if (renderer == null) return;
+        byte colorId = renderer.getPixel(input.getCanvasX(), input.getCanvasY());
         Material foundDye = ColorUtil.getDyeFromColor(colorId);
         String soundName = plugin.getConfig().getString("sounds.pipette", "ENTITY_CHICKEN_EGG");
         Sound soundPipette;
@@ -670,93 +805,390 @@ public class PaintingManager {
                 saveDirtyMaps();
             }
         }.runTaskTimer(plugin, interval, interval);
+
+        // Zápis změněných dlaždic do žurnálu (každých pár ticků)
+        if (journalTask != null && !journalTask.isCancelled()) {
+            journalTask.cancel();
+        }
+        long journalTicks = Math.max(journalInterval, 1);
+        journalTask = new BukkitRunnable() {
+            @Override
+            public void run() {
+                flushJournal();
+            }
+        }.runTaskTimer(plugin, journalTicks, journalTicks);
+
+        // Údržba paměti (každých 10 sekund): odkládání starší historie UNDO na disk
+        // a uvolňování pláten, na která se nikdo nedívá
+        if (maintenanceTask == null) {
+            maintenanceTask = new BukkitRunnable() {
+                @Override
+                public void run() {
+                    undoHistory.maintain();
+                    canvasCache.maintain();
+                    retryPendingBakes();
+                }
+            }.runTaskTimer(plugin, 200L, 200L);
+        }
+    }
+
+    /**
+     * Připíše do žurnálu dlaždice změněné od posledního zápisu.
+     * Mapy zůstávají v dirtyMaps až do kompakce.
+     */
+    public void flushJournal() {
+        if (dirtyMaps.isEmpty()) return;
+
+        for (Integer mapId : dirtyMaps) {
+            ArtRenderer renderer = findRenderer(mapId);
+            if (renderer != null) journal.record(mapId, renderer);
+        }
+        journal.flush();
     }
 
+    /**
+     * Kompakce žurnálu: změněné mapy se uloží celé a žurnál se zkrátí.
+     */
     public void saveDirtyMaps() {
         if (dirtyMaps.isEmpty()) return;
 
+        // Vše, co zůstalo mimo žurnál, pokryjí snímky níže
+        flushJournal();
+
+        Map<Integer, byte[]> snapshots = new HashMap<>();
+        Map<Integer, ArtRenderer> saving = new HashMap<>();
         Iterator<Integer> it = dirtyMaps.iterator();
         while (it.hasNext()) {
             Integer mapId = it.next();
-
-            @SuppressWarnings("deprecation")
-            MapView view = Bukkit.getMap(mapId);
-
-            if (view != null) {
-                for (org.bukkit.map.MapRenderer r : view.getRenderers()) {
-                    if (r instanceof ArtRenderer artRenderer) {
-                        // OPRAVA: Přidán 'null' jako callback, pokud ho DataManager vyžaduje
-                        // DŮLEŽITÉ: getPixelsSnapshot() musí vracet KOPII pole (clone)
-                        DataManager.saveMapAsync(mapId, artRenderer.getPixelsSnapshot(), plugin.getDataFolder(), null);
-                        break;
-                    }
+            ArtRenderer renderer = findRenderer(mapId);
+            if (renderer != null) {
+                // Snapshot je null, pokud se od posledního uložení nezměnila žádná dlaždice
+                byte[] snapshot = renderer.takeSnapshotForSave();
+                if (snapshot != null) {
+                    snapshots.put(mapId, snapshot);
+                    saving.put(mapId, renderer);
                 }
             }
             // Odebereme ze seznamu "špinavých" map, protože se už ukládá
             it.remove();
         }
+        journal.compact(snapshots, (mapId, success) -> {
+            saving.get(mapId).saveFinished(success);
+            // Neuložené plátno zůstane v paměti a příští autosave ho zkusí znovu
+            if (!success) dirtyMaps.add(mapId);
+        });
     }
 
+    /**
+     * Synchronní uložení všech map při vypnutí serveru.
+     * Žurnál se smaže jen tehdy, když se vše uložilo; jinak se přehraje při dalším startu.
+     */
     public void forceSaveAll() {
-        if (dirtyMaps.isEmpty()) return;
+        // Rozpracované tahy se musí dokreslit dřív, než se mapy uloží
+        for (PainterSession session : sessions.values()) {
+            stopPainting(session);
+        }
+        if (!rasterizer.shutdown(10, TimeUnit.SECONDS)) {
+            plugin.getLogger().warning("Nepodařilo se dokreslit všechny tahy před uložením.");
+        }
+        publishStrokes();
+
+        // Nejdřív doběhnou rozpracované kompakce (žurnál -> pool ukládání -> žurnál)
+        journal.awaitPending();
+        DataManager.awaitSaves();
+        journal.awaitPending();
 
+        boolean allSaved = true;
         Iterator<Integer> it = dirtyMaps.iterator();
         while (it.hasNext()) {
             Integer mapId = it.next();
-
-            @SuppressWarnings("deprecation")
-            MapView view = Bukkit.getMap(mapId);
-
-            if (view != null) {
-                for (org.bukkit.map.MapRenderer r : view.getRenderers()) {
-                    if (r instanceof ArtRenderer artRenderer) {
-                        // Zde používáme synchronní uložení (blokuje server, ale zajistí data při vypnutí)
-                        DataManager.saveMapSync(mapId, artRenderer.getPixelsSnapshot(), plugin.getDataFolder());
-                        break;
-                    }
+            ArtRenderer renderer = findRenderer(mapId);
+            if (renderer != null && renderer.isLoaded()) {
+                // Zde používáme synchronní uložení (blokuje server, ale zajistí data při vypnutí)
+                byte[] snapshot = renderer.getPixelsSnapshot();
+                if (!DataManager.saveMapSync(mapId, snapshot, plugin.getDataFolder())) {
+                    // Poslední změny zůstanou v žurnálu
+                    journal.record(mapId, renderer);
+                    allSaved = false;
                 }
+                PixelBufferPool.release(snapshot);
             }
             it.remove();
         }
+        journal.shutdown(allSaved);
     }
 
-    private void createUndoSnapshot(Player player, ItemFrame frame) {
-        MapView view = getOrConvertMapView(frame, player, false);
-        if (view == null) return;
-        ArtRenderer renderer = getOrCreateRenderer(view);
-        undoHistory.putIfAbsent(view.getId(), new ArrayDeque<>());
-        Deque<byte[][]> history = undoHistory.get(view.getId());
-        if (history.size() >= maxUndoSteps) history.removeFirst();
-        history.addLast(renderer.getPixelsSnapshot());
-    }
-
-    public boolean performUndo(Player player, int mapId) {
-        if (undoHistory.containsKey(mapId)) {
-            Deque<byte[][]> history = undoHistory.get(mapId);
-            if (history != null && !history.isEmpty()) {
-                @SuppressWarnings("deprecation")
-                MapView view = Bukkit.getMap(mapId);
-                if (view != null) {
-                    ArtRenderer renderer = getOrCreateRenderer(view);
-                    byte[][] oldPixels = history.removeLast();
-                    renderer.loadPixels(oldPixels);
-                    dirtyMaps.add(mapId);
-                    player.sendMap(view);
-                    return true;
+    private ArtRenderer findRenderer(int mapId) {
+        @SuppressWarnings("deprecation")
+        MapView view = Bukkit.getMap(mapId);
+        if (view == null) return null;
+
+        for (org.bukkit.map.MapRenderer r : view.getRenderers()) {
+            if (r instanceof ArtRenderer artRenderer) return artRenderer;
+        }
+        return null;
+    }
+
+    // Krok UNDO pro volnou ruku/sprej trvá celou session na jednom plátně (od prvního
+    // tahu do timeoutu nebo přechodu na jiný rám). Začátek i konec jdou frontou mapy,
+    // aby obalily právě tahy této session.
+    private void beginSessionUndoStep(PainterSession session, int mapId, ArtRenderer renderer) {
+        if (session.stepRenderer == renderer) return;
+        endSessionUndoStep(session);
+        session.stepRenderer = renderer;
+        session.stepMapId = mapId;
+        submitToCanvas(mapId, renderer, () -> undoHistory.beginStep(mapId, renderer), null);
+    }
+
+    private void endSessionUndoStep(PainterSession session) {
+        ArtRenderer renderer = session.stepRenderer;
+        if (renderer == null) return;
+        int mapId = session.stepMapId;
+        session.stepRenderer = null;
+        submitToCanvas(mapId, renderer, () -> undoHistory.endStep(mapId, renderer), null);
+    }
+
+    // Tah se vykreslí ve frontě mapy; změněné dlaždice rozešle hlavní vlákno (publishStrokes)
+    private void submitStroke(Player player, ItemFrame frame, MapView view, ArtRenderer renderer, Runnable draw) {
+        submitToCanvas(view.getId(), renderer, () -> {
+            draw.run();
+            finishedStrokes.add(new FinishedStroke(player, frame, view, renderer));
+        }, null);
+    }
+
+    // Úloha ve frontě mapy. Plátno se do jejího doběhnutí nesmí uvolnit z paměti;
+    // pokud v ní při zařazení nebylo (načítá se), úloha se přeskočí a zavolá se skipped.
+    private void submitToCanvas(int mapId, ArtRenderer renderer, Runnable job, Runnable skipped) {
+        renderer.pin();
+        renderer.ensureLoaded();
+        rasterizer.submit(mapId, () -> {
+            try {
+                if (renderer.isLoaded()) {
+                    job.run();
+                } else {
+                    plugin.getLogger().warning("Plátno mapy " + mapId + " není načtené, úloha kreslení se přeskočí.");
+                    if (skipped != null) skipped.run();
                 }
+            } finally {
+                renderer.unpin();
+            }
+        });
+    }
+
+    // Hlavní vlákno: dokreslené mapy označí k uložení a pošle hráčům
+    private void publishStrokes() {
+        FinishedStroke stroke;
+        while ((stroke = finishedStrokes.poll()) != null) {
+            dirtyMaps.add(stroke.view().getId());
+            if (!stroke.player().isOnline()) continue;
+            if (stroke.frame() != null) {
+                mapSender.send(stroke.player(), stroke.frame(), stroke.view(), stroke.renderer());
+            } else {
+                mapSender.send(stroke.player(), stroke.view(), stroke.renderer());
+            }
+        }
+        Runnable result;
+        while ((result = laneResults.poll()) != null) {
+            result.run();
+        }
+    }
+
+    /**
+     * UNDO/REDO běží ve frontě mapy za tahy, které hráč zadal dřív (tvar, výplň),
+     * jinak by se vrátil krok před nimi. Výsledek dostane hlavní vlákno.
+     * @param result volá se na hlavním vlákně (true = krok se vrátil / zopakoval)
+     */
+    public void performUndo(Player player, int mapId, Consumer<Boolean> result) {
+        submitHistoryStep(player, mapId, true, result);
+    }
+
+    public void performRedo(Player player, int mapId, Consumer<Boolean> result) {
+        submitHistoryStep(player, mapId, false, result);
+    }
+
+    private void submitHistoryStep(Player player, int mapId, boolean undo, Consumer<Boolean> result) {
+        @SuppressWarnings("deprecation")
+        MapView view = Bukkit.getMap(mapId);
+        ArtRenderer renderer = view != null ? getOrCreateRenderer(view) : null;
+        if (renderer == null) {
+            result.accept(false);
+            return;
+        }
+
+        submitToCanvas(mapId, renderer, () -> {
+            boolean changed = undo ? undoHistory.undo(mapId, renderer) : undoHistory.redo(mapId, renderer);
+            if (changed) finishedStrokes.add(new FinishedStroke(player, null, view, renderer));
+            laneResults.add(() -> result.accept(changed));
+        }, () -> laneResults.add(() -> result.accept(false)));
+    }
+
+    /**
+     * Smaže dílo: nejdřív zahodí jeho čekající uložení (pool ukládání i žurnál),
+     * pak data na disku a historii.
+     */
+    public void deleteArtwork(int mapId) {
+        DataManager.cancelSave(mapId);
+        journal.forget(mapId);
+        DataManager.deleteMap(mapId, plugin.getDataFolder());
+        forgetHistory(mapId);
+    }
+
+    private void forgetHistory(int mapId) {
+        undoHistory.remove(mapId);
+        // Smazané dílo se nesmí vrátit přehráním žurnálu
+        dirtyMaps.remove(mapId);
+        journal.recordDelete(mapId);
+        mapSender.forget(mapId);
+    }
+
+    /**
+     * Uzavře rozpracované kroky všech kreslících hráčů a uloží historii na disk.
+     */
+    public void shutdownHistory() {
+        for (PainterSession session : sessions.values()) {
+            stopPainting(session);
+        }
+        undoHistory.shutdown();
+    }
+
+    /**
+     * Zaregistruje nový renderer do cache pláten (uvolňování nečinných bufferů).
+     */
+    public ArtRenderer track(ArtRenderer renderer) {
+        canvasCache.track(renderer);
+        return renderer;
+    }
+
+    public CanvasCache getCanvasCache() {
+        return canvasCache;
+    }
+
+    public RasterExecutor getRasterizer() {
+        return rasterizer;
+    }
+
+    public MapPacketSender getMapSender() {
+        return mapSender;
+    }
+
+    /**
+     * Zapeče zamčené dílo do vanilla mapy (viz {@link MapBaker}) a uloží jeho
+     * editovatelnou kopii. Nenačtené plátno nebo vypnutá volba = dílo zůstane živé.
+     * @return true, pokud se dílo zapeklo
+     */
+    public BakeResult bakeArtwork(MapView view) {
+        if (!bakeLockedMaps || MapBaker.isBaked(view)) return BakeResult.SKIPPED;
+        ArtRenderer renderer = findArtRenderer(view);
+        if (renderer == null) return BakeResult.SKIPPED;
+
+        int mapId = view.getId();
+        if (!renderer.ensureLoaded()) {
+            // Načítá se na pozadí, údržba zapékání zopakuje
+            pendingBakes.add(mapId);
+            return BakeResult.DEFERRED;
+        }
+        pendingBakes.remove(mapId);
+        startBake(view, renderer);
+        return BakeResult.STARTED;
+    }
+
+    // Mapa se zapeče až po úspěšném uložení: /artmap unlock pak načte aktuální data
+    private void startBake(MapView view, ArtRenderer renderer) {
+        int mapId = view.getId();
+        bakesInFlight.add(mapId);
+        long version = renderer.getVersion();
+        byte[] pixels = renderer.getPixelsSnapshot();
+        DataManager.saveMapAsync(mapId, pixels, plugin.getDataFolder(), success ->
+                Bukkit.getScheduler().runTask(plugin, () -> finishBake(view, renderer, version, pixels, success)));
+    }
+
+    private void finishBake(MapView view, ArtRenderer renderer, long version, byte[] pixels, boolean success) {
+        int mapId = view.getId();
+        // Mezitím odemčeno (/artmap unlock) nebo smazáno
+        if (!bakesInFlight.remove(mapId) || MapBaker.isBaked(view) || findArtRenderer(view) != renderer) {
+            PixelBufferPool.release(pixels);
+            return;
+        }
+        if (!success) {
+            PixelBufferPool.release(pixels);
+            plugin.getLogger().severe("Dílo " + mapId + " se nepodařilo uložit, zůstává nezapečené.");
+            return;
+        }
+        if (renderer.getVersion() != version) {
+            // Plátno se od snímku změnilo: uložit znovu
+            PixelBufferPool.release(pixels);
+            startBake(view, renderer);
+            return;
+        }
+
+        if (mapBaker.bake(view, pixels)) {
+            // Renderer je pryč a data jsou uložená, autosave už mapu nepotřebuje
+            dirtyMaps.remove(mapId);
+            mapSender.forget(mapId);
+        }
+        PixelBufferPool.release(pixels);
+    }
+
+    // Údržba: díla, jejichž plátno se mezitím načetlo
+    private void retryPendingBakes() {
+        if (pendingBakes.isEmpty()) return;
+        Iterator<Integer> it = pendingBakes.iterator();
+        while (it.hasNext()) {
+            @SuppressWarnings("deprecation")
+            MapView view = Bukkit.getMap(it.next());
+            ArtRenderer renderer = view != null ? findArtRenderer(view) : null;
+            if (renderer == null || !bakeLockedMaps || MapBaker.isBaked(view)) {
+                it.remove();
+            } else if (renderer.ensureLoaded()) {
+                it.remove();
+                startBake(view, renderer);
             }
         }
-        return false;
     }
 
+    private static ArtRenderer findArtRenderer(MapView view) {
+        for (org.bukkit.map.MapRenderer r : view.getRenderers()) {
+            if (r instanceof ArtRenderer artRenderer) return artRenderer;
+        }
+        return null;
+    }
+
+    public void unbakeArtwork(MapView view) {
+        int mapId = view.getId();
+        pendingBakes.remove(mapId);
+        bakesInFlight.remove(mapId);
+        if (!MapBaker.isBaked(view)) return;
+        byte[] colors = mapBaker.readColors(view);
+
+        view.setLocked(false);
+        view.getRenderers().forEach(view::removeRenderer);
+        ArtRenderer renderer;
+        if (DataManager.hasSavedData(mapId, plugin.getDataFolder()) || colors == null) {
+            renderer = ArtRenderer.loadAsync(mapId, plugin.getDataFolder());
+        } else {
+            renderer = ArtRenderer.createBlank(mapId, plugin.getDataFolder());
+            renderer.loadPixels(colors);
+            dirtyMaps.add(mapId);
+        }
+        view.addRenderer(track(renderer));
+        mapSender.forget(mapId);
+    }
+
+    /**
+     * Vrátí renderer plátna připravený ke kreslení.
+     * Null = data mapy se ještě načítají na pozadí, nebo bylo plátno uvolněno z cache
+     * a právě se načítá znovu (akci hráč zopakuje za chvíli), nebo je dílo zapečené.
+     */
     private ArtRenderer getOrCreateRenderer(MapView view) {
+        // Zapečené dílo se edituje až po /artmap unlock
+        if (MapBaker.isBaked(view)) return null;
         for (org.bukkit.map.MapRenderer r : view.getRenderers()) {
-            if (r instanceof ArtRenderer) return (ArtRenderer) r;
+            if (r instanceof ArtRenderer artRenderer) return artRenderer.ensureLoaded() ? artRenderer : null;
         }
         view.getRenderers().forEach(view::removeRenderer);
-        ArtRenderer nr = new ArtRenderer(view.getId(), plugin.getDataFolder());
-        view.addRenderer(nr);
-        return nr;
+        view.addRenderer(track(ArtRenderer.loadAsync(view.getId(), plugin.getDataFolder())));
+        mapSender.forget(view.getId());
+        return null;
     }
 
     private MapView getOrConvertMapView(ItemFrame frame, Player player, boolean createIfMissing) {
@@ -765,7 +1197,7 @@ public class PaintingManager {
         if (createIfMissing && item.getType() == Material.MAP) {
             MapView view = Bukkit.createMap(player.getWorld());
             view.getRenderers().forEach(view::removeRenderer);
-            view.addRenderer(new ArtRenderer(view.getId(), plugin.getDataFolder()));
+            view.addRenderer(track(ArtRenderer.createBlank(view.getId(), plugin.getDataFolder())));
             ItemStack newMap = new ItemStack(Material.FILLED_MAP);
             MapMeta mapMeta = (MapMeta) newMap.getItemMeta();
             mapMeta.setMapView(view);
@@ -796,10 +1228,10 @@ public class PaintingManager {
     }
 
     public void handleBrushChange(Player player) {
-        lastPixelPositions.remove(player.getUniqueId());
-        int currentLevel = brushLevels.getOrDefault(player.getUniqueId(), 0);
-        int nextLevel = getNextAllowedLevel(player, currentLevel);
-        brushLevels.put(player.getUniqueId(), nextLevel);
+        PainterSession session = getSession(player);
+        session.hasLastPixel = false;
+        int nextLevel = getNextAllowedLevel(player, session.brushLevel);
+        session.brushLevel = nextLevel;
         String sizeNameKey = switch (nextLevel) {
             case 0 -> "brush-names.small";
             case 1 -> "brush-names.medium";
@@ -820,9 +1252,8 @@ public class PaintingManager {
         return 0;
     }
 
-    private int getBrushRadius(Player player) {
-        int level = brushLevels.getOrDefault(player.getUniqueId(), 0);
-        return switch (level) {
+    private int getBrushRadius(PainterSession session) {
+        return switch (session.brushLevel) {
             case 1 -> brushMedium;
             case 2 -> brushLarge;
             default -> 0;
@@ -830,27 +1261,20 @@ public class PaintingManager {
     }
 
     public void endSession(Player player) {
-        playerModes.remove(player.getUniqueId());
-        shapeStartPoints.remove(player.getUniqueId());
-        activeFrames.remove(player.getUniqueId());
-        lastInteractionTime.remove(player.getUniqueId());
-        brushLevels.remove(player.getUniqueId());
-        lastPixelPositions.remove(player.getUniqueId());
-        cooldownPipette.remove(player.getUniqueId());
-        cooldownReset.remove(player.getUniqueId());
+        PainterSession session = sessions.remove(player.getUniqueId());
+        if (session != null) stopPainting(session);
     }
 
-    private boolean checkCooldown(Player player, Map<UUID, Long> cooldownMap, double seconds) {
+    // Při úspěchu si volající sám zapíše čas použití do session
+    private boolean checkCooldown(Player player, long lastUse, double seconds) {
         if (player.hasPermission("artmap.bypass.cooldown") || player.hasPermission("artmap.admin")) return true;
         long now = System.currentTimeMillis();
-        long lastUse = cooldownMap.getOrDefault(player.getUniqueId(), 0L);
         long cooldownMillis = (long) (seconds * 1000);
         if (now - lastUse < cooldownMillis) {
             double remaining = (cooldownMillis - (now - lastUse)) / 1000.0;
             Lang.sendActionBar(player, "cooldown-wait", String.format("%.1f", remaining));
             return false;
         }
-        cooldownMap.put(player.getUniqueId(), now);
         return true;
     }
 }
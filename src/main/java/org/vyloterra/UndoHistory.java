@@ -0,0 +1,452 @@
+package org.vyloterra;
+
+import org.vyloterra.util.CanvasDiff;
+import org.vyloterra.util.PixelBufferPool;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Historie UNDO/REDO pro všechna plátna na serveru.
+ *
+ * Krok se ukládá jako řídký rozdíl ({@link CanvasDiff}) mezi stavem na začátku
+ * a na konci akce. Historie je dvouvrstvá:
+ * - v paměti zůstává jen několik posledních kroků každé mapy,
+ * - starší kroky a celé historie nečinných map se asynchronně odkládají
+ *   do komprimovaných souborů (undo/map_ID.undo) a načtou se zpět,
+ *   až na ně /artmap undo dojde. Díky tomu historie přežije i restart.
+ *   Soubor spolu s pamětí nikdy nedrží víc než maxSteps kroků.
+ *
+ * Paměťová vrstva má jeden společný rozpočet; při jeho překročení se na disk
+ * odkládají historie nejdéle nepoužitých map (LRU).
+ */
+public class UndoHistory {
+
+    private static final long PENDING_BYTES = ArtRenderer.PIXEL_COUNT;
+    private static final String FILE_EXTENSION = ".undo";
+
+    // accessOrder = true -> iterace od nejdéle nepoužité mapy
+    private final LinkedHashMap<Integer, MapHistory> histories = new LinkedHashMap<>(16, 0.75f, true);
+    // Mapy, jejichž kroky jsou (nebo brzy budou) na disku
+    private final Set<Integer> spilledMaps = new HashSet<>();
+    // Soubory z předchozího běhu jsou už ve spilledMaps (do té doby se ptáme disku)
+    private boolean spilledScanned;
+    // Počet kroků v souboru každé mapy (jen vlákno I/O, null = zatím nespočítáno)
+    private final Map<Integer, Integer> diskSteps = new HashMap<>();
+
+    private final File folder;
+    // Jedno vlákno = zápisy a čtení jednoho souboru jsou vždy v pořadí
+    private final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "ArtMap-Undo-IO");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private int maxSteps;
+    private int memorySteps;
+    private long idleMillis;
+    private long budgetBytes;
+    private long usedBytes;
+
+    private static final class MapHistory {
+        private final Deque<CanvasDiff> undo = new ArrayDeque<>();
+        private final Deque<CanvasDiff> redo = new ArrayDeque<>();
+        // Stav plátna na začátku rozpracovaného kroku (null = žádný krok neběží)
+        private byte[] pending;
+        // Starší kroky se právě načítají z disku; do té doby se historie mapy neodkládá
+        private boolean pagingIn;
+        private long lastAccess = System.currentTimeMillis();
+
+        private boolean isEmpty() {
+            return undo.isEmpty() && redo.isEmpty() && pending == null;
+        }
+    }
+
+    public UndoHistory(File dataFolder) {
+        this.folder = new File(dataFolder, "undo");
+        setLimits(50, 10, 300, 64L * 1024 * 1024);
+        io.execute(this::scanSpilled);
+    }
+
+    /**
+     * @param maxSteps    maximální počet kroků na mapu (paměť + disk)
+     * @param memorySteps počet posledních kroků, které zůstávají v paměti
+     * @param idleSeconds po jaké době nečinnosti se historie mapy celá odloží na disk
+     * @param budgetBytes společný paměťový limit pro všechny mapy
+     */
+    public synchronized void setLimits(int maxSteps, int memorySteps, int idleSeconds, long budgetBytes) {
+        this.maxSteps = Math.max(1, maxSteps);
+        this.memorySteps = Math.max(1, Math.min(memorySteps, this.maxSteps));
+        this.idleMillis = Math.max(1, idleSeconds) * 1000L;
+        this.budgetBytes = Math.max(PENDING_BYTES, budgetBytes);
+        for (MapHistory history : histories.values()) {
+            while (history.undo.size() > this.maxSteps) dropOldest(history);
+        }
+        enforceBudget();
+    }
+
+    /**
+     * Zahájí nový krok: zapamatuje si aktuální stav plátna.
+     * Případný předchozí nedokončený krok se nejdřív uzavře.
+     */
+    public synchronized void beginStep(int mapId, ArtRenderer renderer) {
+        MapHistory history = touch(mapId);
+        finishPending(history, renderer);
+        history.pending = renderer.getPixelsSnapshot();
+        usedBytes += PENDING_BYTES;
+        enforceBudget();
+    }
+
+    /**
+     * Uzavře rozpracovaný krok a uloží jeho rozdíl do historie.
+     */
+    public synchronized void endStep(int mapId, ArtRenderer renderer) {
+        MapHistory history = histories.get(mapId);
+        if (history == null) return;
+        history.lastAccess = System.currentTimeMillis();
+        finishPending(history, renderer);
+        if (history.isEmpty()) histories.remove(mapId);
+        enforceBudget();
+    }
+
+    /**
+     * Vrátí poslední krok. Pokud jsou v paměti všechny kroky vyčerpané, počká na
+     * načtení starších z disku; monitor historie přitom nedrží (ostatní mapy
+     * mezitím kreslí a ukládají dál).
+     */
+    public boolean undo(int mapId, ArtRenderer renderer) {
+        Future<List<CanvasDiff>> load;
+        synchronized (this) {
+            MapHistory history = histories.get(mapId);
+            if (history == null) {
+                if (!hasSpilled(mapId)) return false;
+                history = touch(mapId);
+            }
+            history.lastAccess = System.currentTimeMillis();
+            finishPending(history, renderer);
+
+            // Paměťová vrstva je prázdná -> načteme starší kroky z disku
+            if (!history.undo.isEmpty() || !hasSpilled(mapId)) return undoStep(history, renderer);
+
+            spilledMaps.remove(mapId);
+            history.pagingIn = true;
+            File file = fileFor(mapId);
+            load = io.submit(() -> readAndDelete(mapId, file));
+        }
+
+        List<CanvasDiff> loaded = awaitPageIn(mapId, load);
+
+        synchronized (this) {
+            MapHistory history = touch(mapId);
+            history.pagingIn = false;
+            // Soubor je od nejstaršího kroku; vkládáme před kroky v paměti
+            ListIterator<CanvasDiff> it = loaded.listIterator(loaded.size());
+            while (it.hasPrevious() && history.undo.size() < maxSteps) {
+                CanvasDiff diff = it.previous();
+                history.undo.addFirst(diff);
+                usedBytes += diff.estimatedBytes();
+            }
+            boolean undone = undoStep(history, renderer);
+            enforceBudget();
+            return undone;
+        }
+    }
+
+    private boolean undoStep(MapHistory history, ArtRenderer renderer) {
+        CanvasDiff diff = history.undo.pollLast();
+        if (diff == null) return false;
+
+        byte[] pixels = renderer.getPixelsSnapshot();
+        diff.revert(pixels);
+        renderer.loadPixels(pixels);
+        PixelBufferPool.release(pixels);
+        history.redo.addLast(diff);
+        return true;
+    }
+
+    public synchronized boolean redo(int mapId, ArtRenderer renderer) {
+        MapHistory history = histories.get(mapId);
+        if (history == null) return false;
+        history.lastAccess = System.currentTimeMillis();
+        finishPending(history, renderer);
+
+        CanvasDiff diff = history.redo.pollLast();
+        if (diff == null) return false;
+
+        byte[] pixels = renderer.getPixelsSnapshot();
+        diff.apply(pixels);
+        renderer.loadPixels(pixels);
+        PixelBufferPool.release(pixels);
+        history.undo.addLast(diff);
+        return true;
+    }
+
+    /**
+     * Smaže celou historii mapy včetně souboru (např. po smazání díla).
+     */
+    public synchronized void remove(int mapId) {
+        MapHistory history = histories.remove(mapId);
+        if (history != null) {
+            for (CanvasDiff diff : history.undo) usedBytes -= diff.estimatedBytes();
+            for (CanvasDiff diff : history.redo) usedBytes -= diff.estimatedBytes();
+            if (history.pending != null) usedBytes -= PENDING_BYTES;
+        }
+        spilledMaps.remove(mapId);
+        File file = fileFor(mapId);
+        io.execute(() -> {
+            diskSteps.remove(mapId);
+            deleteFile(file);
+        });
+    }
+
+    /**
+     * Pravidelná údržba (hlavní vlákno): starší kroky nad limit paměťové vrstvy
+     * a celé historie nečinných map se odloží na disk.
+     */
+    public synchronized void maintain() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Integer, MapHistory>> it = histories.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, MapHistory> entry = it.next();
+            MapHistory history = entry.getValue();
+            if (history.pending != null || history.pagingIn) continue;
+
+            if (now - history.lastAccess > idleMillis) {
+                // Nečinná mapa: REDO se zahazuje, UNDO jde celé na disk
+                dropRedo(history);
+                spill(entry.getKey(), history, history.undo.size());
+            } else if (history.undo.size() > memorySteps) {
+                spill(entry.getKey(), history, history.undo.size() - memorySteps);
+            }
+            if (history.isEmpty()) it.remove();
+        }
+    }
+
+    /**
+     * Při vypnutí serveru: veškerá UNDO historie se synchronně uloží na disk.
+     * Rozpracované kroky je potřeba předem uzavřít přes {@link #endStep}.
+     */
+    public synchronized void shutdown() {
+        for (Map.Entry<Integer, MapHistory> entry : histories.entrySet()) {
+            MapHistory history = entry.getValue();
+            spill(entry.getKey(), history, history.undo.size());
+        }
+        histories.clear();
+        usedBytes = 0;
+        io.shutdown();
+        try {
+            if (!io.awaitTermination(30, TimeUnit.SECONDS)) {
+                ArtMapPlugin.getInstance().getLogger().warning("Ukládání historie UNDO nestihlo doběhnout.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    private MapHistory touch(int mapId) {
+        MapHistory history = histories.computeIfAbsent(mapId, id -> new MapHistory());
+        history.lastAccess = System.currentTimeMillis();
+        return history;
+    }
+
+    private boolean hasSpilled(int mapId) {
+        if (spilledMaps.contains(mapId)) return true;
+        if (spilledScanned) return false;
+        // Soubor z předchozího běhu serveru (než doběhne úvodní sken složky)
+        if (fileFor(mapId).exists()) {
+            spilledMaps.add(mapId);
+            return true;
+        }
+        return false;
+    }
+
+    private void finishPending(MapHistory history, ArtRenderer renderer) {
+        if (history.pending == null) return;
+
+        byte[] current = renderer.getPixelsSnapshot();
+        CanvasDiff diff = CanvasDiff.between(history.pending, current);
+        PixelBufferPool.release(current);
+        PixelBufferPool.release(history.pending);
+        history.pending = null;
+        usedBytes -= PENDING_BYTES;
+        if (diff == null) return; // Krok nic nezměnil
+
+        // Nová akce zneplatní REDO
+        dropRedo(history);
+
+        history.undo.addLast(diff);
+        usedBytes += diff.estimatedBytes();
+        while (history.undo.size() > maxSteps) dropOldest(history);
+    }
+
+    private void dropOldest(MapHistory history) {
+        CanvasDiff oldest = history.undo.pollFirst();
+        if (oldest != null) usedBytes -= oldest.estimatedBytes();
+    }
+
+    private void dropRedo(MapHistory history) {
+        for (CanvasDiff old : history.redo) usedBytes -= old.estimatedBytes();
+        history.redo.clear();
+    }
+
+    // Při překročení rozpočtu se na disk odkládají historie nejdéle nepoužitých map.
+    // Rozpracované kroky (pending) zůstávají - patří právě kreslícím hráčům.
+    private void enforceBudget() {
+        Iterator<Map.Entry<Integer, MapHistory>> it = histories.entrySet().iterator();
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            Map.Entry<Integer, MapHistory> entry = it.next();
+            MapHistory history = entry.getValue();
+            if (history.pagingIn) continue;
+            dropRedo(history);
+            spill(entry.getKey(), history, history.undo.size());
+            if (history.isEmpty()) it.remove();
+        }
+    }
+
+    // --- DISKOVÁ VRSTVA ---
+
+    // Odebere 'count' nejstarších kroků z paměti a asynchronně je připíše do souboru.
+    // Soubor drží nejvýš tolik kroků, kolik z limitu maxSteps nezbylo v paměti.
+    private void spill(int mapId, MapHistory history, int count) {
+        if (count <= 0) return;
+        List<CanvasDiff> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            CanvasDiff diff = history.undo.pollFirst();
+            usedBytes -= diff.estimatedBytes();
+            batch.add(diff);
+        }
+        spilledMaps.add(mapId);
+        File file = fileFor(mapId);
+        int diskLimit = Math.max(1, maxSteps - history.undo.size());
+        io.execute(() -> appendToFile(mapId, file, batch, diskLimit));
+    }
+
+    // Čeká na vlákno I/O (mimo monitor historie)
+    private List<CanvasDiff> awaitPageIn(int mapId, Future<List<CanvasDiff>> load) {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při načítání historie mapy " + mapId, e.getCause());
+        }
+        return List.of();
+    }
+
+    // Vlákno I/O: soubory historie z předchozího běhu serveru
+    private void scanSpilled() {
+        File[] files = folder.listFiles((dir, name) -> name.startsWith("map_") && name.endsWith(FILE_EXTENSION));
+        List<Integer> found = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    found.add(Integer.parseInt(name.substring(4, name.length() - FILE_EXTENSION.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        synchronized (this) {
+            spilledMaps.addAll(found);
+            spilledScanned = true;
+        }
+    }
+
+    private File fileFor(int mapId) {
+        return new File(folder, "map_" + mapId + FILE_EXTENSION);
+    }
+
+    // Každé odložení je samostatný GZIP člen připsaný na konec souboru.
+    // Po překročení limitu se soubor přepíše jen s nejnovějšími kroky.
+    private void appendToFile(int mapId, File file, List<CanvasDiff> batch, int limit) {
+        File parent = file.getParentFile();
+        if (!parent.exists()) parent.mkdirs();
+
+        try {
+            Integer stored = diskSteps.get(mapId);
+            if (stored == null) stored = file.exists() ? readFile(mapId, file).size() : 0;
+
+            if (stored + batch.size() <= limit) {
+                writeFile(file, batch, true);
+                diskSteps.put(mapId, stored + batch.size());
+                return;
+            }
+
+            List<CanvasDiff> steps = new ArrayList<>();
+            if (stored > 0) {
+                try {
+                    steps = readFile(mapId, file);
+                } catch (IOException e) {
+                    // Poškozený soubor nahradí nové kroky
+                    ArtMapPlugin.getInstance().getLogger().log(Level.WARNING, "Poškozená historie mapy " + mapId, e);
+                }
+            }
+            steps.addAll(batch);
+            List<CanvasDiff> kept = steps.subList(Math.max(0, steps.size() - limit), steps.size());
+            File temp = new File(parent, file.getName() + ".tmp");
+            writeFile(temp, kept, false);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            diskSteps.put(mapId, kept.size());
+        } catch (IOException e) {
+            diskSteps.remove(mapId);
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při odkládání historie mapy " + mapId, e);
+        }
+    }
+
+    private static void writeFile(File file, List<CanvasDiff> steps, boolean append) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(file, append))))) {
+            out.writeInt(steps.size());
+            for (CanvasDiff diff : steps) diff.writeTo(out);
+        }
+    }
+
+    private List<CanvasDiff> readAndDelete(int mapId, File file) throws IOException {
+        List<CanvasDiff> result = file.exists() ? readFile(mapId, file) : new ArrayList<>();
+        diskSteps.remove(mapId);
+        deleteFile(file);
+        return result;
+    }
+
+    private static List<CanvasDiff> readFile(int mapId, File file) throws IOException {
+        List<CanvasDiff> result = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new FileInputStream(file))))) {
+            while (true) {
+                int count;
+                try {
+                    count = in.readInt();
+                } catch (EOFException end) {
+                    break;
+                }
+                for (int i = 0; i < count; i++) result.add(CanvasDiff.readFrom(in));
+            }
+        } catch (EOFException e) {
+            // Neúplný poslední zápis (pád serveru) - použijeme, co se načetlo
+            ArtMapPlugin.getInstance().getLogger().warning("Historie mapy " + mapId + " je neúplná, načteno " + result.size() + " kroků.");
+        }
+        return result;
+    }
+
+    private static void deleteFile(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -23,10 +23,16 @@ import org.bukkit.util.RayTraceResult;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.vyloterra.ArtMapPlugin;
+import org.vyloterra.ArtProtocol;
 import org.vyloterra.ArtRenderer;
+import org.vyloterra.CanvasCache;
+import org.vyloterra.MapPacketSender;
 import org.vyloterra.PaintingManager;
 import org.vyloterra.util.DataManager;
 import org.vyloterra.util.Lang;
+import org.vyloterra.util.PixelBufferPool;
+import org.vyloterra.util.RasterExecutor;
+import org.vyloterra.util.SaveExecutor;
 
 
 import java.time.Instant;
@@ -34,6 +40,7 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.text.SimpleDateFormat;
@@ -128,8 +135,8 @@ public class ArtCommand implements CommandExecutor, TabCompleter {
             return true;
         }
 
-        // --- UNDO ---
-        if (sub.equals("undo")) {
+        // --- UNDO / REDO ---
+        if (sub.equals("undo") || sub.equals("redo")) {
             if (!(sender instanceof Player player)) {
                 Lang.send(sender, "only-players");
                 return true;
@@ -143,13 +150,19 @@ public class ArtCommand implements CommandExecutor, TabCompleter {
             if (frame != null && frame.getItem().getType() == Material.FILLED_MAP) {
                 if (frame.getItem().getItemMeta() instanceof MapMeta meta && meta.hasMapView()) {
                     int mapId = meta.getMapView().getId();
-                    boolean success = paintingManager.performUndo(player, mapId);
-
-                    if (success) {
-                        Lang.send(player, "undo-success");
-                        player.playSound(player.getLocation(), org.bukkit.Sound.UI_BUTTON_CLICK, 1f, 1f);
+                    Consumer<Boolean> result = success -> {
+                        if (!player.isOnline()) return;
+                        if (success) {
+                            Lang.send(player, sub + "-success");
+                            player.playSound(player.getLocation(), org.bukkit.Sound.UI_BUTTON_CLICK, 1f, 1f);
+                        } else {
+                            Lang.send(player, sub + "-fail");
+                        }
+                    };
+                    if (sub.equals("undo")) {
+                        paintingManager.performUndo(player, mapId, result);
                     } else {
-                        Lang.send(player, "undo-fail");
+                        paintingManager.performRedo(player, mapId, result);
                     }
                 }
             } else {
@@ -250,6 +263,30 @@ public class ArtCommand implements CommandExecutor, TabCompleter {
             return true;
         }
 
+        // --- UNLOCK ---
+        if (sub.equals("unlock")) {
+            if (!sender.hasPermission("artmap.admin")) {
+                Lang.send(sender, "no-permission");
+                return true;
+            }
+            if (!(sender instanceof Player player)) {
+                Lang.send(sender, "only-players");
+                return true;
+            }
+            handleUnlock(player);
+            return true;
+        }
+
+        // --- STATS ---
+        if (sub.equals("stats")) {
+            if (!sender.hasPermission("artmap.admin")) {
+                Lang.send(sender, "no-permission");
+                return true;
+            }
+            handleStats(sender);
+            return true;
+        }
+
         // --- PURGE ---
         if (sub.equals("purge")) {
             if (!sender.hasPermission("artmap.admin")) {
@@ -329,6 +366,11 @@ public class ArtCommand implements CommandExecutor, TabCompleter {
         frame.setItem(item);
 
         Lang.send(player, "saved", title);
+        // Hotové dílo se už nemění -> vanilla mapa bez rendereru pluginu
+        if (meta instanceof MapMeta mapMeta && mapMeta.hasMapView()
+                && paintingManager.bakeArtwork(mapMeta.getMapView()) == PaintingManager.BakeResult.DEFERRED) {
+            Lang.send(player, "bake-deferred");
+        }
 
         String soundName = plugin.getConfig().getString("sounds.created", "UI_CARTOGRAPHY_TABLE_TAKE_RESULT");
         try {
@@ -342,6 +384,34 @@ public class ArtCommand implements CommandExecutor, TabCompleter {
         }
     }
 
+    private void handleUnlock(Player player) {
+        ItemFrame frame = getTargetItemFrame(player);
+        if (frame == null || frame.getItem().getType() != Material.FILLED_MAP) {
+            Lang.send(player, "look-at-frame");
+            return;
+        }
+
+        ItemStack item = frame.getItem();
+        ItemMeta meta = item.getItemMeta();
+        if (meta == null || !meta.getPersistentDataContainer().has(keyLocked, PersistentDataType.BYTE)) {
+            Lang.send(player, "not-locked");
+            return;
+        }
+
+        // Název zůstává, zmizí jen zámek a jeho označení
+        meta.getPersistentDataContainer().remove(keyLocked);
+        meta.removeEnchant(Enchantment.UNBREAKING);
+        meta.removeItemFlags(ItemFlag.HIDE_ENCHANTS);
+        item.setItemMeta(meta);
+        frame.setItem(item);
+
+        if (meta instanceof MapMeta mapMeta && mapMeta.hasMapView()) {
+            paintingManager.unbakeArtwork(mapMeta.getMapView());
+        }
+        Lang.send(player, "unlocked");
+        player.playSound(player.getLocation(), org.bukkit.Sound.UI_BUTTON_CLICK, 1f, 1f);
+    }
+
     private void handleDeleteLookingAt(Player player) {
         ItemFrame frame = getTargetItemFrame(player);
         if (frame == null) {
@@ -353,7 +423,7 @@ public class ArtCommand implements CommandExecutor, TabCompleter {
         if (item.getType() == Material.FILLED_MAP && item.getItemMeta() instanceof MapMeta mapMeta) {
             if (mapMeta.hasMapView()) {
                 int mapId = mapMeta.getMapView().getId();
-                DataManager.deleteMap(mapId, plugin.getDataFolder());
+                paintingManager.deleteArtwork(mapId);
                 MapView view = mapMeta.getMapView();
                 if (view != null) {
                     view.getRenderers().forEach(r -> {
@@ -369,7 +439,7 @@ public class ArtCommand implements CommandExecutor, TabCompleter {
     }
 
     private void handleDeleteById(CommandSender sender, int mapId) {
-        DataManager.deleteMap(mapId, plugin.getDataFolder());
+        paintingManager.deleteArtwork(mapId);
         @SuppressWarnings("deprecation")
         MapView view = Bukkit.getMap(mapId);
         if (view != null) {
@@ -378,6 +448,57 @@ public class ArtCommand implements CommandExecutor, TabCompleter {
         Lang.send(sender, "deleted", String.valueOf(mapId));
     }
 
+    private void handleStats(CommandSender sender) {
+        SaveExecutor saves = DataManager.getSaveStats();
+        sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize("&8&m------------------------"));
+        sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize("&6&l ARTMAP STATISTIKY"));
+        if (saves == null) {
+            sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize("&7 Ukládání: &fzatím nic neuloženo"));
+        } else {
+            sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(
+                    "&7 Fronta ukládání: &f" + saves.getQueueDepth() + " &7(aktivní vlákna: &f" + saves.getActiveThreads() + "&7)"));
+            sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(
+                    "&7 Uloženo: &a" + saves.getCompleted() + " &7| Sloučeno: &e" + saves.getCoalesced()
+                            + " &7| Chyby: &c" + saves.getFailed()));
+            sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(String.format(
+                    "&7 Latence: &f%.1f ms &7průměr, &f%.1f ms &7max",
+                    saves.getAverageLatencyMillis(), saves.getMaxLatencyMillis())));
+        }
+        CanvasCache cache = paintingManager.getCanvasCache();
+        sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(
+                "&7 Plátna v paměti: &f" + cache.getResidentCount() + " &7| Zkomprimovaná: &f" + cache.getWarmCount()
+                        + " &7/ &f" + cache.getTrackedCount()));
+        sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(String.format(
+                "&7 Paměť pláten: &f%.1f MB", cache.getMemoryUsage() / (1024.0 * 1024.0))));
+        sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(
+                "&7 Buffery pláten: &a" + PixelBufferPool.getReused() + " &7znovu, &f" + PixelBufferPool.getAllocated()
+                        + " &7nových (volných: &f" + PixelBufferPool.getPooled() + "&7)"));
+        RasterExecutor rasterizer = paintingManager.getRasterizer();
+        sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(String.format(
+                "&7 Kreslení: &f%d &7tahů (&f%d &7vláken, fronta: &f%d&7, průměr &f%.2f ms&7, chyby: &c%d&7)",
+                rasterizer.getCompleted(), rasterizer.getThreads(), rasterizer.getQueueDepth(),
+                rasterizer.getAverageRunMillis(), rasterizer.getFailed())));
+        ArtProtocol protocol = plugin.getArtProtocol();
+        if (protocol != null) {
+            sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(
+                    "&7 Kliknutí na rámy: &f" + protocol.getInteractionsHandled() + " &7| sloučeno: &e"
+                            + protocol.getInteractionsMerged() + " &7| zahozeno: &c" + protocol.getInteractionsDropped()));
+        }
+        MapPacketSender mapSender = paintingManager.getMapSender();
+        if (mapSender.isActive()) {
+            sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(String.format(
+                    "&7 Pakety map: &f%d &7(%.1f kB, celé mapy by byly &f%.1f kB&7)", mapSender.getPacketsSent(),
+                    mapSender.getBytesSent() / 1024.0, mapSender.getPacketsSent() * 16.0)));
+            sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(
+                    "&7 Galerie z cache: &a" + mapSender.getCacheHits() + " &7| sestaveno: &f" + mapSender.getCacheMisses()));
+            sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize(
+                    "&7 Divákům pláten: &f" + mapSender.getSpectatorPackets() + " &7paketů | odloženo: &a" + mapSender.getSpectatorDeferred()));
+        } else {
+            sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize("&7 Pakety map: &fcelé mapy (sendMap)"));
+        }
+        sender.sendMessage(LegacyComponentSerializer.legacyAmpersand().deserialize("&8&m------------------------"));
+    }
+
     private void handlePurge(CommandSender sender, String[] args) {
         if (args.length != 2) { Lang.send(sender, "invalid-number"); return; }
         try {
@@ -406,7 +527,7 @@ public class ArtCommand implements CommandExecutor, TabCompleter {
     @Override
     public @Nullable List<String> onTabComplete(@NotNull CommandSender sender, @NotNull Command command, @NotNull String alias, @NotNull String[] args) {
         if (args.length == 1) {
-            return Stream.of("name", "delete", "purge", "undo", "copy", "reload", "inspect")
+            return Stream.of("name", "delete", "purge", "undo", "redo", "copy", "reload", "inspect", "stats", "unlock")
                     .filter(s -> s.startsWith(args[0]))
                     .collect(Collectors.toList());
         }
@@ -1,65 +1,144 @@
 package org.vyloterra.util;
 
 import org.bukkit.block.BlockFace;
-import org.bukkit.util.Vector;
 import org.vyloterra.ArtRenderer;
 
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ArtMath {
 
     public static final int MAP_SIZE = 128;
-    private static final Random random = new Random();
+
+    // Delší skok mezi body tahu se nespojuje (hráč přeskočil pohledem jinam)
+    public static final int MAX_CONNECT_DISTANCE = 40;
+    // Po kolika pixelech se křivka tahu nahradí úsečkou
+    private static final double SPLINE_STEP = 3.0;
+
+    // Předpočítané tabulky štětců: pro každý poloměr pole polovičních šířek řádků
+    // (index = dy + radius). Větší poloměry se počítají za běhu.
+    // Plní se celé při načtení třídy, takže je vlákna rasterizace čtou bez synchronizace.
+    private static final int MAX_CACHED_RADIUS = 64;
+    private static final int[][] BRUSH_SPANS = new int[MAX_CACHED_RADIUS + 1][];
+
+    static {
+        for (int radius = 0; radius <= MAX_CACHED_RADIUS; radius++) {
+            BRUSH_SPANS[radius] = computeBrushSpans(radius);
+        }
+    }
 
     /**
-     * Převede souřadnice z kliknutí na ItemFrame na pixelové souřadnice (0-127).
+     * Převede bod na ItemFrame (relativně ke středu rámu) na pixelové souřadnice (0-127).
+     * Výsledek zapíše do out[0], out[1], aby se každý tick nealokovalo nové pole.
+     * @return false, pokud rám nevisí na stěně (podlaha/strop)
      */
-    public static int[] getCanvasCoordinates(Vector hitPos, Vector framePos, BlockFace face) {
-        Vector relative = hitPos.clone().subtract(framePos);
-
+    public static boolean getCanvasCoordinates(double relX, double relY, double relZ, BlockFace face, int[] out) {
         // Y je v MC zdola nahoru, na mapě shora dolů -> 0.5 - Y
-        double canvasY = 0.5 - relative.getY();
+        double canvasY = 0.5 - relY;
         double canvasX;
 
         // Protilehlé strany musí mít opačné znaménko
         switch (face) {
-            case NORTH: canvasX = 0.5 - relative.getX(); break;
-            case SOUTH: canvasX = 0.5 + relative.getX(); break;
-            case WEST:  canvasX = 0.5 + relative.getZ(); break;
-            case EAST:  canvasX = 0.5 - relative.getZ(); break;
-            default: return null;
+            case NORTH: canvasX = 0.5 - relX; break;
+            case SOUTH: canvasX = 0.5 + relX; break;
+            case WEST:  canvasX = 0.5 + relZ; break;
+            case EAST:  canvasX = 0.5 - relZ; break;
+            default: return false;
         }
 
         int x = (int) (canvasX * MAP_SIZE);
         int y = (int) (canvasY * MAP_SIZE);
 
-        return new int[]{
-                Math.max(0, Math.min(MAP_SIZE - 1, x)),
-                Math.max(0, Math.min(MAP_SIZE - 1, y))
-        };
+        out[0] = Math.max(0, Math.min(MAP_SIZE - 1, x));
+        out[1] = Math.max(0, Math.min(MAP_SIZE - 1, y));
+        return true;
+    }
+
+    /**
+     * Průsečík paprsku s kvádrem (slab metoda, stejný výsledek jako BoundingBox.rayTrace, ale bez alokací).
+     * Směr musí být normalizovaný.
+     * @return vzdálenost k zásahu po paprsku, nebo -1, pokud paprsek kvádr mine
+     */
+    public static double rayTraceBox(double ox, double oy, double oz, double dx, double dy, double dz,
+                                     double minX, double minY, double minZ, double maxX, double maxY, double maxZ,
+                                     double maxDistance) {
+        double tMin = Double.NEGATIVE_INFINITY;
+        double tMax = Double.POSITIVE_INFINITY;
+
+        if (dx == 0.0) {
+            if (ox < minX || ox > maxX) return -1;
+        } else {
+            double t1 = (minX - ox) / dx;
+            double t2 = (maxX - ox) / dx;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        }
+        if (dy == 0.0) {
+            if (oy < minY || oy > maxY) return -1;
+        } else {
+            double t1 = (minY - oy) / dy;
+            double t2 = (maxY - oy) / dy;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        }
+        if (dz == 0.0) {
+            if (oz < minZ || oz > maxZ) return -1;
+        } else {
+            double t1 = (minZ - oz) / dz;
+            double t2 = (maxZ - oz) / dz;
+            tMin = Math.max(tMin, Math.min(t1, t2));
+            tMax = Math.min(tMax, Math.max(t1, t2));
+        }
+
+        if (tMax < Math.max(0.0, tMin)) return -1;
+        // Oko uvnitř kvádru = zásah na výstupu
+        double t = tMin >= 0.0 ? tMin : tMax;
+        return t > maxDistance ? -1 : t;
     }
 
     // --- KRESLÍCÍ METODY ---
+    // Veřejné metody s ArtRenderer kreslí jako jeden tah (jedno zamčení plátna).
+    // Varianty se Stroke jen zaznamenávají spany do již rozpracovaného tahu.
+
+    /**
+     * Vrátí tabulku polovičních šířek kruhového štětce (index = dy + radius).
+     * Tabulka se sdílí, nesmí se měnit.
+     */
+    public static int[] getBrushSpans(int radius) {
+        if (radius > MAX_CACHED_RADIUS) return computeBrushSpans(radius);
+        return BRUSH_SPANS[radius];
+    }
+
+    private static int[] computeBrushSpans(int radius) {
+        int[] spans = new int[radius * 2 + 1];
+        int rSq = radius * radius;
+        for (int y = -radius; y <= radius; y++) {
+            spans[y + radius] = (int) Math.sqrt(rSq - y * y);
+        }
+        return spans;
+    }
 
     /**
      * Vykreslí plný kruh/čtverec (štětec).
      */
     public static void drawPencil(ArtRenderer renderer, int cx, int cy, int radius, byte color) {
+        ArtRenderer.Stroke stroke = renderer.beginStroke();
+        drawPencil(stroke, cx, cy, radius, color);
+        stroke.commit();
+    }
+
+    public static void drawPencil(ArtRenderer.Stroke stroke, int cx, int cy, int radius, byte color) {
         if (radius <= 0) {
-            renderer.draw(cx, cy, color);
+            stroke.pixel(cx, cy, color);
             return;
         }
 
-        int rSq = radius * radius;
+        int[] spans = getBrushSpans(radius);
 
-        // Scanline optimalizace
+        // Scanline optimalizace - jeden span na řádek
         for (int y = -radius; y <= radius; y++) {
-            int width = (int) Math.sqrt(rSq - y * y);
-            for (int x = -width; x <= width; x++) {
-                renderer.draw(cx + x, cy + y, color);
-            }
+            int width = spans[y + radius];
+            stroke.span(cy + y, cx - width, cx + width, color);
         }
     }
 
@@ -68,15 +147,21 @@ public class ArtMath {
      * Střídá dvě barvy v šachovnicovém vzoru.
      */
     public static void drawMix(ArtRenderer renderer, int cx, int cy, int radius, byte color1, byte color2) {
+        ArtRenderer.Stroke stroke = renderer.beginStroke();
+        drawMix(stroke, cx, cy, radius, color1, color2);
+        stroke.commit();
+    }
+
+    public static void drawMix(ArtRenderer.Stroke stroke, int cx, int cy, int radius, byte color1, byte color2) {
         if (radius <= 0) {
-            renderer.draw(cx, cy, color1);
+            stroke.pixel(cx, cy, color1);
             return;
         }
 
-        int rSq = radius * radius;
+        int[] spans = getBrushSpans(radius);
 
         for (int y = -radius; y <= radius; y++) {
-            int width = (int) Math.sqrt(rSq - y * y);
+            int width = spans[y + radius];
             for (int x = -width; x <= width; x++) {
                 // Šachovnice: (x + y) % 2
                 // Absolutní souřadnice zajistí, že vzor navazuje i při pohybu myši
@@ -84,9 +169,9 @@ public class ArtMath {
                 int absY = cy + y;
 
                 if ((absX + absY) % 2 == 0) {
-                    renderer.draw(absX, absY, color1);
+                    stroke.pixel(absX, absY, color1);
                 } else {
-                    renderer.draw(absX, absY, color2);
+                    stroke.pixel(absX, absY, color2);
                 }
             }
         }
@@ -97,8 +182,14 @@ public class ArtMath {
      * @param density Hustota teček (čím vyšší, tím více barvy)
      */
     public static void drawSpray(ArtRenderer renderer, int cx, int cy, int radius, byte color, int density) {
+        ArtRenderer.Stroke stroke = renderer.beginStroke();
+        drawSpray(stroke, cx, cy, radius, color, density);
+        stroke.commit();
+    }
+
+    public static void drawSpray(ArtRenderer.Stroke stroke, int cx, int cy, int radius, byte color, int density) {
         if (radius <= 0) {
-            renderer.draw(cx, cy, color);
+            stroke.pixel(cx, cy, color);
             return;
         }
 
@@ -106,6 +197,8 @@ public class ArtMath {
 
         // Počet teček v jednom ticku
         int dots = density * 2;
+        // Kreslí se ve vláknech rasterizace: každé vlákno má vlastní generátor
+        ThreadLocalRandom random = ThreadLocalRandom.current();
 
         for (int i = 0; i < dots; i++) {
             // Náhodný bod v kruhu
@@ -115,7 +208,7 @@ public class ArtMath {
             if (dx * dx + dy * dy <= rSq) {
                 // Občas vynecháme pixel pro "vzdušný" efekt (50% šance)
                 if (random.nextBoolean()) {
-                    renderer.draw(cx + dx, cy + dy, color);
+                    stroke.pixel(cx + dx, cy + dy, color);
                 }
             }
         }
@@ -125,6 +218,30 @@ public class ArtMath {
      * Vykreslí čáru (Bresenham).
      */
     public static void drawLine(ArtRenderer renderer, int x1, int y1, int x2, int y2, int radius, byte color) {
+        ArtRenderer.Stroke stroke = renderer.beginStroke();
+        drawLine(stroke, x1, y1, x2, y2, radius, color);
+        stroke.commit();
+    }
+
+    /**
+     * Tlustá čára jako "kapsle": sjednocení kruhů štětce podél Bresenhamovy cesty.
+     * Pro každý řádek se spočítá jen krajní levý a pravý okraj pokrytí
+     * (sjednocení je v řádku vždy souvislé), takže každý pixel se zapíše jednou.
+     */
+    public static void drawLine(ArtRenderer.Stroke stroke, int x1, int y1, int x2, int y2, int radius, byte color) {
+        if (radius < 0) radius = 0;
+        int[] spans = getBrushSpans(radius);
+
+        int top = Math.max(0, Math.min(y1, y2) - radius);
+        int bottom = Math.min(MAP_SIZE - 1, Math.max(y1, y2) + radius);
+        if (top > bottom) return;
+
+        int rows = bottom - top + 1;
+        int[] minX = new int[rows];
+        int[] maxX = new int[rows];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(maxX, Integer.MIN_VALUE);
+
         int dx = Math.abs(x2 - x1);
         int dy = Math.abs(y2 - y1);
         int sx = x1 < x2 ? 1 : -1;
@@ -132,28 +249,105 @@ public class ArtMath {
         int err = dx - dy;
 
         while (true) {
-            drawPencil(renderer, x1, y1, radius, color);
+            int from = Math.max(-radius, top - y1);
+            int to = Math.min(radius, bottom - y1);
+            for (int oy = from; oy <= to; oy++) {
+                int row = y1 + oy - top;
+                int width = spans[oy + radius];
+                if (x1 - width < minX[row]) minX[row] = x1 - width;
+                if (x1 + width > maxX[row]) maxX[row] = x1 + width;
+            }
+
             if (x1 == x2 && y1 == y2) break;
             int e2 = 2 * err;
             if (e2 > -dy) { err -= dy; x1 += sx; }
             if (e2 < dx) { err += dx; y1 += sy; }
         }
+
+        for (int row = 0; row < rows; row++) {
+            if (minX[row] <= maxX[row]) {
+                stroke.span(top + row, minX[row], maxX[row], color);
+            }
+        }
+    }
+
+    /**
+     * Vyhlazený tah volnou rukou (Catmull-Rom) přes body xs/ys jedním tahem.
+     * Kreslí se od bodu from do posledního bodu; body před from slouží jen
+     * jako řídicí (navážou směr na předchozí tick). Úsek delší než
+     * {@link #MAX_CONNECT_DISTANCE} se nespojuje, nakreslí se jen jeho koncový bod.
+     */
+    public static void drawSpline(ArtRenderer renderer, int[] xs, int[] ys, int from, int radius, byte color) {
+        ArtRenderer.Stroke stroke = renderer.beginStroke();
+        drawSpline(stroke, xs, ys, from, radius, color);
+        stroke.commit();
+    }
+
+    public static void drawSpline(ArtRenderer.Stroke stroke, int[] xs, int[] ys, int from, int radius, byte color) {
+        int last = xs.length - 1;
+        if (from >= last) {
+            // Žádný nový bod: hráč stojí na místě
+            drawPencil(stroke, xs[last], ys[last], radius, color);
+            return;
+        }
+
+        for (int i = from; i < last; i++) {
+            int x1 = xs[i], y1 = ys[i];
+            int x2 = xs[i + 1], y2 = ys[i + 1];
+            double length = Math.hypot(x2 - x1, y2 - y1);
+            if (length >= MAX_CONNECT_DISTANCE) {
+                drawPencil(stroke, x2, y2, radius, color);
+                continue;
+            }
+            if (length < 2 * SPLINE_STEP) {
+                drawLine(stroke, x1, y1, x2, y2, radius, color);
+                continue;
+            }
+
+            // Sousední body úseku (na krajích se zopakuje krajní bod)
+            int x0 = xs[Math.max(i - 1, 0)], y0 = ys[Math.max(i - 1, 0)];
+            int x3 = xs[Math.min(i + 2, last)], y3 = ys[Math.min(i + 2, last)];
+
+            int steps = (int) Math.ceil(length / SPLINE_STEP);
+            int px = x1, py = y1;
+            for (int step = 1; step <= steps; step++) {
+                double t = step / (double) steps;
+                int qx = step == steps ? x2 : (int) Math.round(catmullRom(x0, x1, x2, x3, t));
+                int qy = step == steps ? y2 : (int) Math.round(catmullRom(y0, y1, y2, y3, t));
+                if (qx == px && qy == py) continue;
+                drawLine(stroke, px, py, qx, qy, radius, color);
+                px = qx;
+                py = qy;
+            }
+        }
+    }
+
+    private static double catmullRom(int p0, int p1, int p2, int p3, double t) {
+        double t2 = t * t;
+        double t3 = t2 * t;
+        return 0.5 * (2 * p1
+                + (p2 - p0) * t
+                + (2 * p0 - 5 * p1 + 4 * p2 - p3) * t2
+                + (3 * p1 - p0 - 3 * p2 + p3) * t3);
     }
 
     /**
      * Vykreslí obdélník (obrys).
      */
     public static void drawRectangle(ArtRenderer renderer, int x1, int y1, int x2, int y2, int radius, byte color) {
-        drawLine(renderer, x1, y1, x2, y1, radius, color); // Horní
-        drawLine(renderer, x1, y2, x2, y2, radius, color); // Spodní
-        drawLine(renderer, x1, y1, x1, y2, radius, color); // Levá
-        drawLine(renderer, x2, y1, x2, y2, radius, color); // Pravá
+        ArtRenderer.Stroke stroke = renderer.beginStroke();
+        drawLine(stroke, x1, y1, x2, y1, radius, color); // Horní
+        drawLine(stroke, x1, y2, x2, y2, radius, color); // Spodní
+        drawLine(stroke, x1, y1, x1, y2, radius, color); // Levá
+        drawLine(stroke, x2, y1, x2, y2, radius, color); // Pravá
+        stroke.commit();
     }
 
     /**
      * Vykreslí kružnici (obrys).
      */
     public static void drawCircle(ArtRenderer renderer, int x1, int y1, int x2, int y2, int brushRadius, byte color) {
+        ArtRenderer.Stroke stroke = renderer.beginStroke();
         int r = Math.abs(x2 - x1) / 2;
         int cx = (x1 + x2) / 2;
         int cy = (y1 + y2) / 2;
@@ -162,14 +356,14 @@ public class ArtMath {
         int d = 3 - 2 * r;
 
         while (y >= x) {
-            drawPencil(renderer, cx + x, cy + y, brushRadius, color);
-            drawPencil(renderer, cx - x, cy + y, brushRadius, color);
-            drawPencil(renderer, cx + x, cy - y, brushRadius, color);
-            drawPencil(renderer, cx - x, cy - y, brushRadius, color);
-            drawPencil(renderer, cx + y, cy + x, brushRadius, color);
-            drawPencil(renderer, cx - y, cy + x, brushRadius, color);
-            drawPencil(renderer, cx + y, cy - x, brushRadius, color);
-            drawPencil(renderer, cx - y, cy - x, brushRadius, color);
+            drawPencil(stroke, cx + x, cy + y, brushRadius, color);
+            drawPencil(stroke, cx - x, cy + y, brushRadius, color);
+            drawPencil(stroke, cx + x, cy - y, brushRadius, color);
+            drawPencil(stroke, cx - x, cy - y, brushRadius, color);
+            drawPencil(stroke, cx + y, cy + x, brushRadius, color);
+            drawPencil(stroke, cx - y, cy + x, brushRadius, color);
+            drawPencil(stroke, cx + y, cy - x, brushRadius, color);
+            drawPencil(stroke, cx - y, cy - x, brushRadius, color);
             x++;
             if (d > 0) {
                 y--;
@@ -178,61 +372,95 @@ public class ArtMath {
                 d = d + 4 * x + 6;
             }
         }
+        stroke.commit();
     }
 
     /**
-     * OPTIMALIZOVANÝ Flood Fill (Kyblík).
-     * Pracuje s kopií pole (snapshot), což je extrémně rychlé oproti volání rendereru.
+     * Scanline Flood Fill (Kyblík).
+     * Pracuje nad znovupoužitelnou kopií plátna: vyplněné pixely už nemají cílovou barvu,
+     * takže není potřeba pole "visited". Výsledné spany jdou do rendereru jako jeden tah,
+     * tzn. zapíšou se jen změněné pixely a klientům se pošlou jen dotčené dlaždice.
      */
     public static void runFloodFill(ArtRenderer renderer, int startX, int startY, byte replacementColor) {
-        // 1. Získáme snapshot (jedno zamčení vlákna)
-        byte[][] pixels = renderer.getPixelsSnapshot();
-        byte targetColor = pixels[startX][startY];
+        if (startX < 0 || startX >= MAP_SIZE || startY < 0 || startY >= MAP_SIZE) return;
+
+        // 1. Snapshot do bufferu vlákna (jedno zamčení, žádná alokace)
+        byte[] pixels = FILL_BUFFER.get();
+        renderer.copyPixels(pixels);
+        byte targetColor = pixels[ArtRenderer.index(startX, startY)];
 
         if (targetColor == replacementColor) return;
 
-        Queue<int[]> queue = new LinkedList<>();
-        queue.add(new int[]{startX, startY});
+        IntStack stack = FILL_STACK.get();
+        stack.clear();
+        stack.push(ArtRenderer.index(startX, startY));
 
-        boolean[][] visited = new boolean[MAP_SIZE][MAP_SIZE];
-        visited[startX][startY] = true;
+        ArtRenderer.Stroke stroke = renderer.beginStroke();
 
-        boolean changed = false;
-        int pixelsChanged = 0;
-        int maxPixels = MAP_SIZE * MAP_SIZE; // Ochrana proti zacyklení
+        // 2. Výpočet v paměti (bez zamykání rendereru)
+        while (!stack.isEmpty()) {
+            int seed = stack.pop();
+            if (pixels[seed] != targetColor) continue; // Mezitím vyplněno z jiného semínka
 
-        // 2. Rychlý výpočet v paměti (bez zamykání rendereru)
-        while (!queue.isEmpty() && pixelsChanged < maxPixels) {
-            int[] pos = queue.poll();
-            int x = pos[0];
-            int y = pos[1];
+            int y = seed >> 7;
+            int row = y << 7;
+            int left = seed & 127;
+            int right = left;
+            while (left > 0 && pixels[row | (left - 1)] == targetColor) left--;
+            while (right < MAP_SIZE - 1 && pixels[row | (right + 1)] == targetColor) right++;
 
-            // Zápis do lokálního pole
-            pixels[x][y] = replacementColor;
-            changed = true;
-            pixelsChanged++;
+            Arrays.fill(pixels, row | left, (row | right) + 1, replacementColor);
+            stroke.span(y, left, right, replacementColor);
 
-            // Kontrola sousedů přímo v lokálním poli
-            checkNeighborFast(pixels, x + 1, y, targetColor, visited, queue);
-            checkNeighborFast(pixels, x - 1, y, targetColor, visited, queue);
-            checkNeighborFast(pixels, x, y + 1, targetColor, visited, queue);
-            checkNeighborFast(pixels, x, y - 1, targetColor, visited, queue);
+            if (y > 0) pushSeeds(pixels, stack, y - 1, left, right, targetColor);
+            if (y < MAP_SIZE - 1) pushSeeds(pixels, stack, y + 1, left, right, targetColor);
         }
 
-        // 3. Uložení zpět (jedno zamčení vlákna)
-        if (changed) {
-            renderer.loadPixels(pixels);
+        // 3. Zápis zpět (jedno zamčení, jen změněné spany)
+        stroke.commit();
+    }
+
+    // Do zásobníku vloží začátek každého souvislého úseku cílové barvy v řádku
+    private static void pushSeeds(byte[] pixels, IntStack stack, int y, int left, int right, byte target) {
+        int row = y << 7;
+        boolean inRun = false;
+        for (int x = left; x <= right; x++) {
+            if (pixels[row | x] == target) {
+                if (!inRun) {
+                    stack.push(row | x);
+                    inRun = true;
+                }
+            } else {
+                inRun = false;
+            }
         }
     }
 
-    // Rychlá kontrola souseda (pracuje s byte[][], ne s rendererem)
-    private static void checkNeighborFast(byte[][] pixels, int x, int y, byte target, boolean[][] visited, Queue<int[]> queue) {
-        if (x < 0 || x >= MAP_SIZE || y < 0 || y >= MAP_SIZE) return;
-        if (visited[x][y]) return;
+    private static final ThreadLocal<byte[]> FILL_BUFFER = ThreadLocal.withInitial(() -> new byte[MAP_SIZE * MAP_SIZE]);
+    private static final ThreadLocal<IntStack> FILL_STACK = ThreadLocal.withInitial(IntStack::new);
+
+    /**
+     * Jednoduchý zásobník primitivních intů (bez boxingu a bez alokace na prvek).
+     */
+    private static final class IntStack {
+        private int[] data = new int[256];
+        private int size;
+
+        void push(int value) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = value;
+        }
+
+        int pop() {
+            return data[--size];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
 
-        if (pixels[x][y] == target) {
-            visited[x][y] = true;
-            queue.add(new int[]{x, y});
+        void clear() {
+            size = 0;
         }
     }
 }
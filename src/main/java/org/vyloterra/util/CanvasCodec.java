@@ -0,0 +1,260 @@
+package org.vyloterra.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Kodek dat plátna (128x128, řádkově).
+ *
+ * Formát: magic "AMC" + verze + kódování, pak data.
+ * - PALETTE_RLE: paleta použitých barev a běhy (index barvy, délka jako varint).
+ *   Obrazy mají typicky pár desítek barev a dlouhé souvislé plochy.
+ * - PALETTE_RLE_DEFLATE: totéž ještě stlačené Deflaterem (opakující se vzory, text).
+ * - DEFLATE: surové pixely přes Deflater, pokud by běhy vyšly velké (šum, dithering).
+ * Staré soubory (GZIP po sloupcích) se poznají podle hlavičky 1f 8b a načtou se také.
+ *
+ * Deflater/Inflater a pracovní buffery jsou na vlákno, nealokují se pro každý soubor.
+ */
+public final class CanvasCodec {
+
+    private static final int SIZE = 128;
+    private static final int PIXEL_COUNT = SIZE * SIZE;
+
+    private static final byte[] MAGIC = {'A', 'M', 'C'};
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+
+    private static final byte ENCODING_PALETTE_RLE = 1;
+    private static final byte ENCODING_DEFLATE = 2;
+    private static final byte ENCODING_PALETTE_RLE_DEFLATE = 3;
+
+    // Nejhorší případ RLE: hlavička + paleta + 16384 běhů po 2 B
+    private static final int MAX_ENCODED = HEADER_SIZE + 1 + 256 + PIXEL_COUNT * 4;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Deflater> FAST_DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> RLE_BUFFER = ThreadLocal.withInitial(() -> new byte[MAX_ENCODED]);
+    private static final ThreadLocal<byte[]> DEFLATE_BUFFER = ThreadLocal.withInitial(() -> new byte[PIXEL_COUNT + 1024]);
+
+    private CanvasCodec() {
+    }
+
+    /**
+     * Kódování pro disk: zkusí běhy, stlačené běhy i stlačené pixely a vezme nejmenší.
+     * Výsledek tak není nikdy větší než Deflate samotných pixelů (+ 5 B hlavičky).
+     */
+    public static byte[] encode(byte[] pixels) {
+        byte[] rle = RLE_BUFFER.get();
+        int rleLength = encodePaletteRle(pixels, rle);
+        byte[] best = null;
+        int bestLength = rleLength;
+
+        // Stlačené běhy se vyplatí jen u řídkých obrazů (velké jednobarevné plochy)
+        byte[] deflated = DEFLATE_BUFFER.get();
+        if (rleLength <= PIXEL_COUNT / 4) {
+            int length = deflate(DEFLATER.get(), ENCODING_PALETTE_RLE_DEFLATE, rle, HEADER_SIZE, rleLength - HEADER_SIZE, deflated);
+            if (length > 0 && length < bestLength) {
+                best = Arrays.copyOf(deflated, length);
+                bestLength = length;
+            }
+        }
+
+        int length = deflate(DEFLATER.get(), ENCODING_DEFLATE, pixels, 0, PIXEL_COUNT, deflated);
+        if (length > 0 && length < bestLength) {
+            return Arrays.copyOf(deflated, length);
+        }
+        return best != null ? best : Arrays.copyOf(rle, rleLength);
+    }
+
+    /**
+     * Rychlé kódování pro plátna držená v paměti: běhy + Deflater na nejnižší úrovni.
+     * Zhruba 4x rychlejší než {@link #encode} za cenu o pár procent větších dat,
+     * výsledek čte běžné {@link #decode}.
+     */
+    public static byte[] encodeFast(byte[] pixels) {
+        byte[] rle = RLE_BUFFER.get();
+        int rleLength = encodePaletteRle(pixels, rle);
+        byte[] deflated = DEFLATE_BUFFER.get();
+        int deflateLength = deflate(FAST_DEFLATER.get(), ENCODING_PALETTE_RLE_DEFLATE, rle, HEADER_SIZE, rleLength - HEADER_SIZE, deflated);
+        if (deflateLength > 0 && deflateLength < rleLength) {
+            return Arrays.copyOf(deflated, deflateLength);
+        }
+        return Arrays.copyOf(rle, rleLength);
+    }
+
+    public static byte[] decode(byte[] data) throws IOException {
+        if (data.length >= 2 && (data[0] & 0xFF) == 0x1f && (data[1] & 0xFF) == 0x8b) {
+            return decodeLegacy(data);
+        }
+        if (data.length < HEADER_SIZE || data[0] != MAGIC[0] || data[1] != MAGIC[1] || data[2] != MAGIC[2]) {
+            throw new IOException("Neznámý formát dat plátna");
+        }
+        if (data[3] > VERSION) {
+            throw new IOException("Nepodporovaná verze dat plátna: " + data[3]);
+        }
+
+        return switch (data[4]) {
+            case ENCODING_PALETTE_RLE -> decodePaletteRle(data);
+            case ENCODING_DEFLATE -> inflate(data, PIXEL_COUNT);
+            case ENCODING_PALETTE_RLE_DEFLATE -> {
+                byte[] rle = inflate(data, -1);
+                yield decodePaletteRle(rle);
+            }
+            default -> throw new IOException("Neznámé kódování dat plátna: " + data[4]);
+        };
+    }
+
+    // --- PALETA + BĚHY ---
+
+    private static int encodePaletteRle(byte[] pixels, byte[] out) {
+        // Paleta v pořadí prvního výskytu; 0 v indexes = barva zatím nepoužitá
+        int[] indexes = new int[256];
+        int paletteSize = 0;
+        for (byte pixel : pixels) {
+            int color = pixel & 0xFF;
+            if (indexes[color] == 0) indexes[color] = ++paletteSize;
+        }
+
+        int pos = writeHeader(out, ENCODING_PALETTE_RLE);
+        out[pos++] = (byte) (paletteSize - 1);
+        for (int color = 0; color < 256; color++) {
+            if (indexes[color] != 0) out[indexes[color] - 1 + pos] = (byte) color;
+        }
+        pos += paletteSize;
+
+        int i = 0;
+        while (i < PIXEL_COUNT) {
+            byte color = pixels[i];
+            int end = i + 1;
+            while (end < PIXEL_COUNT && pixels[end] == color) end++;
+
+            out[pos++] = (byte) (indexes[color & 0xFF] - 1);
+            int length = end - i - 1;
+            while (length >= 0x80) {
+                out[pos++] = (byte) (length | 0x80);
+                length >>>= 7;
+            }
+            out[pos++] = (byte) length;
+            i = end;
+        }
+        return pos;
+    }
+
+    private static byte[] decodePaletteRle(byte[] data) throws IOException {
+        int pos = HEADER_SIZE;
+        if (pos >= data.length) throw new IOException("Neúplná data plátna");
+        int paletteSize = (data[pos++] & 0xFF) + 1;
+        if (pos + paletteSize > data.length) throw new IOException("Poškozená paleta plátna");
+        byte[] palette = Arrays.copyOfRange(data, pos, pos + paletteSize);
+        pos += paletteSize;
+
+        // Pole se celé přepíše běhy (jinak výjimka), nemusí být vynulované.
+        // Při chybě se vrátí do poolu.
+        byte[] pixels = PixelBufferPool.acquire();
+        boolean complete = false;
+        int i = 0;
+        try {
+            while (i < PIXEL_COUNT) {
+                byte color = palette[data[pos++] & 0xFF];
+                int length = 0;
+                int shift = 0;
+                int b;
+                do {
+                    if (shift > 28) throw new IOException("Poškozená délka běhu v datech plátna");
+                    b = data[pos++];
+                    length |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+
+                if (length < 0 || length >= PIXEL_COUNT - i) throw new IOException("Poškozená data plátna");
+                int end = i + length + 1;
+                Arrays.fill(pixels, i, end, color);
+                i = end;
+            }
+            complete = true;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Neúplná data plátna", e);
+        } finally {
+            if (!complete) PixelBufferPool.release(pixels);
+        }
+        return pixels;
+    }
+
+    // --- DEFLATE ---
+
+    private static int deflate(Deflater deflater, byte encoding, byte[] input, int offset, int length, byte[] out) {
+        deflater.reset();
+        deflater.setInput(input, offset, length);
+        deflater.finish();
+        int pos = writeHeader(out, encoding);
+        while (!deflater.finished()) {
+            if (pos == out.length) return -1; // Nestlačitelná data, zůstanou běhy
+            pos += deflater.deflate(out, pos, out.length - pos);
+        }
+        return pos;
+    }
+
+    // Pro RLE (expected = -1) se výstup rozkóduje do pracovního bufferu i s hlavičkou,
+    // aby šel rovnou předat do decodePaletteRle
+    private static byte[] inflate(byte[] data, int expected) throws IOException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+        byte[] out = expected < 0 ? RLE_BUFFER.get() : PixelBufferPool.acquire();
+        int pos = expected < 0 ? HEADER_SIZE : 0;
+        int limit = expected < 0 ? out.length : expected;
+        boolean complete = false;
+        try {
+            while (pos < limit && !inflater.finished()) {
+                int read = inflater.inflate(out, pos, limit - pos);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                pos += read;
+            }
+            if (!inflater.finished() || (expected >= 0 && pos != expected)) {
+                throw new IOException("Neúplná data plátna");
+            }
+            complete = true;
+        } catch (DataFormatException e) {
+            throw new IOException("Poškozená data plátna", e);
+        } finally {
+            if (!complete && expected >= 0) PixelBufferPool.release(out);
+        }
+        return out;
+    }
+
+    // --- STARÝ FORMÁT ---
+
+    // GZIP po sloupcích (x, pak y) ze starších verzí pluginu
+    private static byte[] decodeLegacy(byte[] data) throws IOException {
+        byte[] pixels = PixelBufferPool.acquire();
+        byte[] column = new byte[SIZE];
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(data)))) {
+            for (int x = 0; x < SIZE; x++) {
+                in.readFully(column);
+                for (int y = 0; y < SIZE; y++) {
+                    pixels[y * SIZE + x] = column[y];
+                }
+            }
+        } catch (IOException e) {
+            PixelBufferPool.release(pixels);
+            throw e;
+        }
+        return pixels;
+    }
+
+    private static int writeHeader(byte[] out, byte encoding) {
+        out[0] = MAGIC[0];
+        out[1] = MAGIC[1];
+        out[2] = MAGIC[2];
+        out[3] = VERSION;
+        out[4] = encoding;
+        return HEADER_SIZE;
+    }
+}
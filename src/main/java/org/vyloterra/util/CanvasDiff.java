@@ -0,0 +1,131 @@
+package org.vyloterra.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Řídký rozdíl dvou stavů plátna (jeden krok UNDO/REDO).
+ * Ukládá jen běhy změněných pixelů: pozici, délku a původní i nové hodnoty.
+ */
+public final class CanvasDiff {
+
+    // Malé mezery mezi změnami se slučují do jednoho běhu (hlavička běhu stojí 4 B,
+    // nezměněný pixel uvnitř běhu 2 B)
+    private static final int MERGE_GAP = 2;
+    private static final int OVERHEAD_BYTES = 48;
+
+    // Zabalený běh: start << 15 | délka
+    private final int[] runs;
+    private final byte[] before;
+    private final byte[] after;
+
+    private CanvasDiff(int[] runs, byte[] before, byte[] after) {
+        this.runs = runs;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Spočítá rozdíl mezi dvěma plátny stejné velikosti.
+     * @return null, pokud jsou plátna stejná
+     */
+    public static CanvasDiff between(byte[] oldPixels, byte[] newPixels) {
+        int length = oldPixels.length;
+        int[] runs = new int[16];
+        int runCount = 0;
+        int changed = 0;
+
+        int i = Arrays.mismatch(oldPixels, newPixels);
+        while (i >= 0 && i < length) {
+            int start = i;
+            int end = i + 1; // exkluzivně
+            int gap = 0;
+            for (int j = end; j < length; j++) {
+                if (oldPixels[j] != newPixels[j]) {
+                    end = j + 1;
+                    gap = 0;
+                } else if (++gap > MERGE_GAP) {
+                    break;
+                }
+            }
+
+            if (runCount == runs.length) runs = Arrays.copyOf(runs, runCount * 2);
+            runs[runCount++] = (start << 15) | (end - start);
+            changed += end - start;
+
+            if (end >= length) break;
+            int next = Arrays.mismatch(oldPixels, end, length, newPixels, end, length);
+            i = next < 0 ? -1 : end + next;
+        }
+
+        if (runCount == 0) return null;
+
+        byte[] before = new byte[changed];
+        byte[] after = new byte[changed];
+        int pos = 0;
+        for (int r = 0; r < runCount; r++) {
+            int start = runs[r] >>> 15;
+            int len = runs[r] & 0x7FFF;
+            System.arraycopy(oldPixels, start, before, pos, len);
+            System.arraycopy(newPixels, start, after, pos, len);
+            pos += len;
+        }
+        return new CanvasDiff(Arrays.copyOf(runs, runCount), before, after);
+    }
+
+    /**
+     * Vrátí plátno do stavu před změnou (UNDO).
+     */
+    public void revert(byte[] pixels) {
+        write(pixels, before);
+    }
+
+    /**
+     * Znovu aplikuje změnu (REDO).
+     */
+    public void apply(byte[] pixels) {
+        write(pixels, after);
+    }
+
+    private void write(byte[] pixels, byte[] values) {
+        int pos = 0;
+        for (int run : runs) {
+            int start = run >>> 15;
+            int len = run & 0x7FFF;
+            System.arraycopy(values, pos, pixels, start, len);
+            pos += len;
+        }
+    }
+
+    /**
+     * Zápis do streamu (odkládání historie na disk).
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(runs.length);
+        for (int run : runs) out.writeInt(run);
+        out.writeInt(before.length);
+        out.write(before);
+        out.write(after);
+    }
+
+    public static CanvasDiff readFrom(DataInputStream in) throws IOException {
+        int runCount = in.readInt();
+        int[] runs = new int[runCount];
+        for (int i = 0; i < runCount; i++) runs[i] = in.readInt();
+        int changed = in.readInt();
+        byte[] before = new byte[changed];
+        byte[] after = new byte[changed];
+        in.readFully(before);
+        in.readFully(after);
+        return new CanvasDiff(runs, before, after);
+    }
+
+    /**
+     * Odhad obsazené paměti (pro globální rozpočet historie).
+     */
+    public long estimatedBytes() {
+        return OVERHEAD_BYTES + runs.length * 4L + before.length * 2L;
+    }
+}
@@ -3,108 +3,386 @@ package org.vyloterra.util;
 import org.vyloterra.ArtMapPlugin;
 
 import java.io.*;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
-import java.util.concurrent.CompletableFuture;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.logging.Level;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 public class DataManager {
 
-    private static final String FILE_EXTENSION = ".dat";
-    private static final int MAP_SIZE = 128;
+    private static final String LEGACY_EXTENSION = ".dat";
+    private static final String REGION_FOLDER = "regions";
+
+    // Ukládání je převážně I/O; víc vláken by jen soupeřilo o zámky region souborů
+    private static final int SAVE_THREADS = 2;
+
+    // Zámek pro store a pooly. Nesmí se držet při čekání na pool: vlákna ukládání ho potřebují v getStore()
+    private static final Object LOCK = new Object();
+
+    private static RegionStore store;
+
+    // Index ID uložených map (hot path MapInitializeEvent nesahá na disk)
+    private static final IntHashSet savedMaps = new IntHashSet(1024);
+    private static final IntHashSet removedWhileIndexing = new IntHashSet();
+    private static volatile boolean indexReady;
+    private static SaveExecutor saveExecutor;
+    // Pool, který při posledním čekání nestihl doběhnout (další čekání na něj počká znovu)
+    private static SaveExecutor unfinishedSaves;
+    private static final int LOAD_THREADS = 2;
+    private static ExecutorService loadExecutor;
 
     /**
      * Asynchronní uložení mapy (používá se během běhu serveru).
+     * Běží ve vlastním poolu; čeká-li na uložení starší snímek stejné mapy, nahradí se.
      * @param pixelsSnapshot Musí být KOPIE dat, nikoliv živé pole!
      * @param callback Volitelná akce po dokončení (true = úspěch, false = chyba). Může být null.
      */
-    public static void saveMapAsync(int mapId, byte[][] pixelsSnapshot, File dataFolder, Consumer<Boolean> callback) {
-        CompletableFuture.runAsync(() -> {
-            try {
-                // Pokus o uložení
-                saveMap(mapId, pixelsSnapshot, dataFolder);
-                // Pokud nenastala chyba a máme callback, nahlásíme úspěch
-                if (callback != null) callback.accept(true);
-            } catch (Exception e) {
-                // Pokud nastala chyba, vyhodíme ji, aby ji chytil .exceptionally()
-                throw new RuntimeException(e);
-            }
-        }).exceptionally(ex -> {
-            // Logování chyby do konzole
-            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE,
-                    "Chyba při asynchronním ukládání mapy " + mapId, ex);
-
-            // Nahlášení neúspěchu callbacku
-            if (callback != null) callback.accept(false);
-            return null;
-        });
+    public static void saveMapAsync(int mapId, byte[] pixelsSnapshot, File dataFolder, Consumer<Boolean> callback) {
+        getSaveExecutor(dataFolder).submit(mapId, pixelsSnapshot, callback);
     }
 
     /**
-     * Synchronní uložení (používá se při vypínání serveru).
+     * Synchronní uložení (používá se při vypínání serveru a při kompakci žurnálu).
+     * @return true, pokud se mapa uložila
      */
-    public static void saveMapSync(int mapId, byte[][] pixelsSnapshot, File dataFolder) {
+    public static boolean saveMapSync(int mapId, byte[] pixelsSnapshot, File dataFolder) {
         try {
             saveMap(mapId, pixelsSnapshot, dataFolder);
+            return true;
         } catch (IOException e) {
             ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při synchronním ukládání mapy " + mapId, e);
+            return false;
         }
     }
 
     /**
-     * Interní metoda pro zápis dat do souboru (GZIP komprese).
+     * Interní metoda pro zápis dat do region úložiště (formát viz {@link CanvasCodec}).
      */
-    private static void saveMap(int mapId, byte[][] pixels, File dataFolder) throws IOException {
-        if (!dataFolder.exists()) dataFolder.mkdirs();
-
-        File file = new File(dataFolder, "map_" + mapId + FILE_EXTENSION);
-
-        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(file)))) {
-            for (int x = 0; x < MAP_SIZE; x++) {
-                out.write(pixels[x]);
-            }
-        }
+    private static void saveMap(int mapId, byte[] pixels, File dataFolder) throws IOException {
+        getStore(dataFolder).write(mapId, CanvasCodec.encode(pixels));
+        indexAdd(mapId);
     }
 
-    public static byte[][] loadMap(int mapId, File dataFolder) {
-        File file = new File(dataFolder, "map_" + mapId + FILE_EXTENSION);
-        if (!file.exists()) return null;
-
-        byte[][] pixels = new byte[MAP_SIZE][MAP_SIZE];
-
-        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)))) {
-            for (int x = 0; x < MAP_SIZE; x++) {
-                in.readFully(pixels[x]);
-            }
-            return pixels;
+    public static byte[] loadMap(int mapId, File dataFolder) {
+        try {
+            return readMap(mapId, dataFolder);
         } catch (IOException e) {
             ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při načítání mapy " + mapId, e);
             return null;
         }
     }
 
-    public static void deleteMap(int mapId, File dataFolder) {
-        File file = new File(dataFolder, "map_" + mapId + FILE_EXTENSION);
-        if (file.exists()) {
+    /**
+     * Asynchronní načtení mapy (MapInitializeEvent, první použití plátna).
+     * Callback běží ve vlákně načítání a dostane null, pokud mapa nemá uložená data.
+     * Při chybě čtení se callback nezavolá (plátno nesmí přepsat data, která nešla načíst).
+     */
+    public static void loadMapAsync(int mapId, File dataFolder, Consumer<byte[]> callback) {
+        getLoadExecutor().execute(() -> {
             try {
-                Files.delete(file.toPath());
+                callback.accept(readMap(mapId, dataFolder));
             } catch (IOException e) {
-                e.printStackTrace();
+                ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při načítání mapy " + mapId, e);
+            }
+        });
+    }
+
+    private static byte[] readMap(int mapId, File dataFolder) throws IOException {
+        // Snímek, který ještě čeká na uložení, je novější než data na disku
+        SaveExecutor saves = getSaveStats();
+        if (saves != null) {
+            byte[] unsaved = saves.getUnsaved(mapId);
+            if (unsaved != null) return unsaved;
+        }
+
+        byte[] data = getStore(dataFolder).read(mapId);
+        if (data == null) {
+            // Mapa ještě nemusí být zmigrovaná ze starého souboru
+            File legacy = legacyFile(mapId, dataFolder);
+            if (legacy.exists()) {
+                try {
+                    data = Files.readAllBytes(legacy.toPath());
+                } catch (NoSuchFileException e) {
+                    // Migrace soubor mezitím přesunula do regionu
+                    data = getStore(dataFolder).read(mapId);
+                }
             }
         }
+        return data == null ? null : CanvasCodec.decode(data);
+    }
+
+    public static void deleteMap(int mapId, File dataFolder) {
+        // Čekající uložení by smazanou mapu zapsalo znovu
+        cancelSave(mapId);
+        indexRemove(mapId);
+        try {
+            getStore(dataFolder).delete(mapId);
+            Files.deleteIfExists(legacyFile(mapId, dataFolder).toPath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
+    /**
+     * Je mapa plátno ArtMap? Po sestavení indexu se odpovídá jen z paměti.
+     */
     public static boolean hasSavedData(int mapId, File dataFolder) {
-        return new File(dataFolder, "map_" + mapId + FILE_EXTENSION).exists();
+        if (indexReady) {
+            synchronized (savedMaps) {
+                return savedMaps.contains(mapId);
+            }
+        }
+
+        try {
+            if (getStore(dataFolder).contains(mapId)) return true;
+        } catch (IOException e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při čtení region souboru mapy " + mapId, e);
+        }
+        return legacyFile(mapId, dataFolder).exists();
     }
 
     public static int purgeMaps(int days, File dataFolder) {
         if (!dataFolder.exists()) return 0;
 
         long threshold = System.currentTimeMillis() - (days * 24L * 60L * 60L * 1000L);
-        File[] files = dataFolder.listFiles((dir, name) -> name.endsWith(FILE_EXTENSION));
+
+        // Spolu se starými mapami mizí i jejich odložená historie UNDO
+        purgeFolder(new File(dataFolder, "undo"), ".undo", threshold, null);
+
+        int count = purgeFolder(dataFolder, LEGACY_EXTENSION, threshold, DataManager::indexRemove);
+        try {
+            // Čas poslední změny je přímo v hlavičce regionu, nemusí se procházet soubory
+            count += getStore(dataFolder).purgeOlderThan(threshold, DataManager::indexRemove);
+        } catch (IOException e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při mazání starých map", e);
+        }
+        return count;
+    }
+
+    /**
+     * Přesune staré soubory map_ID.dat do region úložiště.
+     * Obsah souboru se kopíruje beze změny (starý GZIP formát umí CanvasCodec načíst).
+     * Pokud už region novější verzi mapy obsahuje, starý soubor se jen smaže.
+     * @return počet zmigrovaných map
+     */
+    public static int migrateLegacyFiles(File dataFolder) {
+        if (!dataFolder.exists()) return 0;
+
+        RegionStore store = getStore(dataFolder);
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dataFolder.toPath(), "map_*" + LEGACY_EXTENSION)) {
+            for (Path path : stream) {
+                int mapId = parseMapId(path.getFileName().toString(), LEGACY_EXTENSION);
+                if (mapId < 0) continue;
+
+                try {
+                    long modified = Files.getLastModifiedTime(path).toMillis();
+                    if (store.writeIfAbsent(mapId, Files.readAllBytes(path), modified)) count++;
+                    Files.delete(path);
+                } catch (IOException e) {
+                    ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při migraci mapy " + mapId, e);
+                }
+            }
+        } catch (IOException e) {
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při migraci starých map", e);
+        }
+        return count;
+    }
+
+    /**
+     * Sestaví index ID uložených map (hlavičky regionů + případné staré soubory).
+     * Volá se jednou na pozadí při startu, po migraci. Do té doby hasSavedData čte disk.
+     */
+    public static void buildIndex(File dataFolder) {
+        IntHashSet found = new IntHashSet(1024);
+        try {
+            getStore(dataFolder).forEachStoredMap(found::add);
+            if (dataFolder.exists()) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dataFolder.toPath(), "map_*" + LEGACY_EXTENSION)) {
+                    for (Path path : stream) {
+                        int mapId = parseMapId(path.getFileName().toString(), LEGACY_EXTENSION);
+                        if (mapId >= 0) found.add(mapId);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Bez indexu se dál odpovídá z disku
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při sestavování indexu map", e);
+            return;
+        }
+
+        synchronized (savedMaps) {
+            // Mapy smazané během skenování se do indexu nesmí vrátit
+            found.forEach(mapId -> {
+                if (!removedWhileIndexing.contains(mapId)) savedMaps.add(mapId);
+            });
+            removedWhileIndexing.clear();
+            indexReady = true;
+        }
+    }
+
+    public static int getIndexedMapCount() {
+        synchronized (savedMaps) {
+            return indexReady ? savedMaps.size() : -1;
+        }
+    }
+
+    private static void indexAdd(int mapId) {
+        synchronized (savedMaps) {
+            savedMaps.add(mapId);
+            removedWhileIndexing.remove(mapId);
+        }
+    }
+
+    private static void indexRemove(int mapId) {
+        synchronized (savedMaps) {
+            savedMaps.remove(mapId);
+            if (!indexReady) removedWhileIndexing.add(mapId);
+        }
+    }
+
+    /**
+     * Počká na dokončení asynchronních uložení a zavře region soubory (při vypínání serveru).
+     */
+    public static void close() {
+        synchronized (LOCK) {
+            if (loadExecutor != null) {
+                loadExecutor.shutdownNow();
+                loadExecutor = null;
+            }
+        }
+        if (!awaitSaves()) {
+            // Vlákna ukládání ještě zapisují; zavřený region by jim zápis rozbil
+            ArtMapPlugin.getInstance().getLogger().warning("Region soubory zůstávají otevřené kvůli nedokončenému ukládání.");
+            return;
+        }
+        synchronized (LOCK) {
+            if (store != null) {
+                store.close();
+                store = null;
+            }
+        }
+        synchronized (savedMaps) {
+            savedMaps.clear();
+            removedWhileIndexing.clear();
+            indexReady = false;
+        }
+    }
+
+    /**
+     * Počká, než se dokončí všechna naplánovaná asynchronní uložení.
+     * @return false, pokud ukládání nestihlo doběhnout
+     */
+    public static boolean awaitSaves() {
+        SaveExecutor saves;
+        synchronized (LOCK) {
+            saves = saveExecutor != null ? saveExecutor : unfinishedSaves;
+        }
+        if (saves == null) return true;
+
+        boolean finished = saves.shutdown(30, TimeUnit.SECONDS);
+        if (!finished) {
+            ArtMapPlugin.getInstance().getLogger().warning("Asynchronní ukládání map nestihlo doběhnout.");
+        }
+        synchronized (LOCK) {
+            if (saveExecutor == saves) saveExecutor = null;
+            unfinishedSaves = finished ? null : saves;
+        }
+        return finished;
+    }
+
+    /**
+     * Pool pro ukládání map (pro /artmap stats). Může být null, pokud se zatím nic neukládalo.
+     */
+    /**
+     * Zahodí naplánované uložení mapy a počká na dokončení rozpracovaného zápisu.
+     */
+    public static void cancelSave(int mapId) {
+        SaveExecutor current;
+        SaveExecutor unfinished;
+        synchronized (LOCK) {
+            current = saveExecutor;
+            unfinished = unfinishedSaves;
+        }
+        if (current != null) current.cancel(mapId);
+        if (unfinished != null) unfinished.cancel(mapId);
+    }
+
+    public static SaveExecutor getSaveStats() {
+        synchronized (LOCK) {
+            return saveExecutor;
+        }
+    }
+
+    private static ExecutorService getLoadExecutor() {
+        synchronized (LOCK) {
+            if (loadExecutor == null) {
+                AtomicInteger counter = new AtomicInteger();
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(LOAD_THREADS, LOAD_THREADS, 30L, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "ArtMap-Load-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                pool.allowCoreThreadTimeOut(true);
+                loadExecutor = pool;
+            }
+            return loadExecutor;
+        }
+    }
+
+    private static SaveExecutor getSaveExecutor(File dataFolder) {
+        synchronized (LOCK) {
+            if (saveExecutor == null) {
+                saveExecutor = new SaveExecutor(SAVE_THREADS, (mapId, pixels) -> {
+                    try {
+                        saveMap(mapId, pixels, dataFolder);
+                    } catch (IOException e) {
+                        ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE,
+                                "Chyba při asynchronním ukládání mapy " + mapId, e);
+                        throw e;
+                    }
+                });
+            }
+            return saveExecutor;
+        }
+    }
+
+    private static RegionStore getStore(File dataFolder) {
+        File folder = new File(dataFolder, REGION_FOLDER);
+        synchronized (LOCK) {
+            if (store == null || !store.getFolder().equals(folder)) {
+                if (store != null) store.close();
+                store = new RegionStore(folder);
+            }
+            return store;
+        }
+    }
+
+    private static File legacyFile(int mapId, File dataFolder) {
+        return new File(dataFolder, "map_" + mapId + LEGACY_EXTENSION);
+    }
+
+    // "map_123.dat" -> 123, jinak -1
+    private static int parseMapId(String name, String extension) {
+        if (!name.startsWith("map_") || !name.endsWith(extension)) return -1;
+        try {
+            return Integer.parseInt(name.substring(4, name.length() - extension.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int purgeFolder(File folder, String extension, long threshold, IntConsumer removed) {
+        File[] files = folder.listFiles((dir, name) -> name.endsWith(extension));
 
         if (files == null) return 0;
 
@@ -113,6 +391,10 @@ public class DataManager {
             if (file.lastModified() < threshold) {
                 if (file.delete()) {
                     count++;
+                    if (removed != null) {
+                        int mapId = parseMapId(file.getName(), extension);
+                        if (mapId >= 0) removed.accept(mapId);
+                    }
                 }
             }
         }
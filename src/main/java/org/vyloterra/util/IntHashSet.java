@@ -0,0 +1,130 @@
+package org.vyloterra.util;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Jednoduchá množina primitivních int (otevřené adresování, lineární sondování).
+ * Bez boxování do Integer - index desítek tisíc ID map zabere jen pár set kB.
+ * Není thread-safe.
+ */
+public final class IntHashSet {
+
+    // Prázdné místo v tabulce; samotná hodnota MIN_VALUE se drží zvlášť
+    private static final int FREE = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private int mask;
+    private int size;
+    private boolean containsFree;
+
+    public IntHashSet() {
+        this(64);
+    }
+
+    public IntHashSet(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new int[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+    }
+
+    public boolean contains(int key) {
+        if (key == FREE) return containsFree;
+        int slot = hash(key) & mask;
+        while (true) {
+            int current = keys[slot];
+            if (current == FREE) return false;
+            if (current == key) return true;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public boolean add(int key) {
+        if (key == FREE) {
+            if (containsFree) return false;
+            containsFree = true;
+            size++;
+            return true;
+        }
+        int slot = hash(key) & mask;
+        while (true) {
+            int current = keys[slot];
+            if (current == key) return false;
+            if (current == FREE) break;
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        // Zaplnění nad 1/2 -> zdvojnásobení
+        if (++size * 2 > keys.length) rehash(keys.length * 2);
+        return true;
+    }
+
+    public boolean remove(int key) {
+        if (key == FREE) {
+            if (!containsFree) return false;
+            containsFree = false;
+            size--;
+            return true;
+        }
+        int slot = hash(key) & mask;
+        while (true) {
+            int current = keys[slot];
+            if (current == FREE) return false;
+            if (current == key) break;
+            slot = (slot + 1) & mask;
+        }
+
+        // Posun následujících prvků zpět, aby řetězec sondování zůstal souvislý
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keys[next] != FREE) {
+            int home = hash(keys[next]) & mask;
+            // Prvek se smí přesunout do mezery, jen pokud mezera leží mezi jeho domovem a jím
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = FREE;
+        size--;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(IntConsumer action) {
+        if (containsFree) action.accept(FREE);
+        for (int key : keys) {
+            if (key != FREE) action.accept(key);
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        containsFree = false;
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        int[] old = keys;
+        keys = new int[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+        for (int key : old) {
+            if (key == FREE) continue;
+            int slot = hash(key) & mask;
+            while (keys[slot] != FREE) slot = (slot + 1) & mask;
+            keys[slot] = key;
+        }
+    }
+
+    // ID map jdou za sebou, promícháme je (konstanta zlatého řezu)
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
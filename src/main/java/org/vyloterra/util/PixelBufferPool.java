@@ -0,0 +1,61 @@
+package org.vyloterra.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sdílený pool bufferů plátna (128x128 = 16 kB).
+ *
+ * Snímky pro ukládání, UNDO a načítání map vznikají a zanikají v dávkách
+ * (autosave, velké akce); místo nové alokace se použije buffer vrácený dříve.
+ * Vrácení je dobrovolné - buffer, který se nevrátí, prostě uklidí GC.
+ * Vrácený buffer ale nesmí nikdo dál používat. Thread-safe.
+ */
+public final class PixelBufferPool {
+
+    private static final int PIXEL_COUNT = 128 * 128;
+    // Nejvýše 1 MB volných bufferů; přebytečné se zahodí
+    private static final int MAX_POOLED = 64;
+
+    private static final ArrayBlockingQueue<byte[]> POOL = new ArrayBlockingQueue<>(MAX_POOLED);
+
+    private static final LongAdder reused = new LongAdder();
+    private static final LongAdder allocated = new LongAdder();
+
+    private PixelBufferPool() {
+    }
+
+    /**
+     * Vrátí buffer plátna. Obsah není vynulovaný, volající ho musí celý přepsat.
+     */
+    public static byte[] acquire() {
+        byte[] buffer = POOL.poll();
+        if (buffer != null) {
+            reused.increment();
+            return buffer;
+        }
+        allocated.increment();
+        return new byte[PIXEL_COUNT];
+    }
+
+    /**
+     * Vrátí buffer do poolu. Volající už s ním nesmí dál pracovat.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer != null && buffer.length == PIXEL_COUNT) POOL.offer(buffer);
+    }
+
+    // --- GETTERY PRO /artmap stats ---
+
+    public static long getReused() {
+        return reused.sum();
+    }
+
+    public static long getAllocated() {
+        return allocated.sum();
+    }
+
+    public static int getPooled() {
+        return POOL.size();
+    }
+}
@@ -0,0 +1,162 @@
+package org.vyloterra.util;
+
+import org.vyloterra.ArtMapPlugin;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Pool vláken pro kreslení tahů mimo hlavní vlákno.
+ *
+ * Každá mapa má vlastní frontu úloh bez zámků. Úlohy jedné mapy běží popořadě
+ * a nejvýše v jednom vlákně (stejné pořadí jako na hlavním vlákně, kroky UNDO
+ * obalují své tahy), různé mapy se kreslí paralelně.
+ * S nulovým počtem vláken, nebo po ukončení poolu, běží úlohy hned ve volajícím vlákně.
+ */
+public class RasterExecutor {
+
+    // Po tolika úlohách vlákno pustí ke slovu ostatní mapy
+    private static final int BATCH_SIZE = 32;
+
+    private final ThreadPoolExecutor pool;
+    private final Map<Integer, Lane> lanes = new ConcurrentHashMap<>();
+
+    // --- STATISTIKY ---
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalRunNanos = new LongAdder();
+
+    private static final class Lane {
+        private final Queue<Runnable> jobs = new ConcurrentLinkedQueue<>();
+        // Frontu mapy právě zpracovává (nebo má naplánované) některé vlákno
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+    }
+
+    public RasterExecutor(int threads) {
+        if (threads <= 0) {
+            this.pool = null;
+            return;
+        }
+        AtomicInteger counter = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "ArtMap-Raster-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Zařadí úlohu do fronty mapy. Úlohy stejné mapy se provedou v pořadí zařazení.
+     */
+    public void submit(int mapId, Runnable job) {
+        submitted.increment();
+        if (pool == null || pool.isShutdown()) {
+            run(job);
+            return;
+        }
+        Lane lane = lanes.computeIfAbsent(mapId, id -> new Lane());
+        lane.jobs.add(job);
+        queued.incrementAndGet();
+        schedule(lane);
+    }
+
+    private void schedule(Lane lane) {
+        if (!lane.scheduled.compareAndSet(false, true)) return;
+        try {
+            pool.execute(() -> drain(lane));
+        } catch (RejectedExecutionException e) {
+            // Pool se mezitím ukončil: zbytek fronty doběhne tady
+            lane.scheduled.set(false);
+            runAll(lane);
+        }
+    }
+
+    private void drain(Lane lane) {
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            Runnable job = lane.jobs.poll();
+            if (job == null) break;
+            queued.decrementAndGet();
+            run(job);
+        }
+        lane.scheduled.set(false);
+        // Úloha přidaná mezi posledním poll() a uvolněním fronty (nebo zbytek po dávce)
+        if (!lane.jobs.isEmpty()) schedule(lane);
+    }
+
+    private void runAll(Lane lane) {
+        Runnable job;
+        while ((job = lane.jobs.poll()) != null) {
+            queued.decrementAndGet();
+            run(job);
+        }
+    }
+
+    private void run(Runnable job) {
+        long start = System.nanoTime();
+        try {
+            job.run();
+            completed.increment();
+        } catch (RuntimeException e) {
+            failed.increment();
+            ArtMapPlugin.getInstance().getLogger().log(Level.SEVERE, "Chyba při kreslení tahu", e);
+        }
+        totalRunNanos.add(System.nanoTime() - start);
+    }
+
+    /**
+     * Počká na dokončení všech zařazených tahů a ukončí pool.
+     * Další úlohy pak běží přímo ve volajícím vlákně.
+     * @return false, pokud se nestihlo vše dokreslit
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        if (pool == null) return true;
+        pool.shutdown();
+        try {
+            return pool.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // --- GETTERY PRO /artmap stats ---
+
+    public int getThreads() {
+        return pool == null ? 0 : pool.getMaximumPoolSize();
+    }
+
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public double getAverageRunMillis() {
+        long count = completed.sum() + failed.sum();
+        return count == 0 ? 0.0 : totalRunNanos.sum() / (double) count / 1_000_000.0;
+    }
+}
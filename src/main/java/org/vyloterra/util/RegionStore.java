@@ -0,0 +1,305 @@
+package org.vyloterra.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Úložiště dat map v několika "region" souborech místo jednoho souboru na mapu.
+ *
+ * Každý soubor r.N.amr drží až 1024 map (ID N*1024 .. N*1024+1023).
+ * Na začátku souboru je hlavička s indexem (pro každou mapu offset, délka,
+ * čas změny a příznaky), data jsou v sektorech po 512 B. Přepis mapy se zapisuje
+ * do volného místa a až potom se přepne hlavička, takže pád serveru uprostřed
+ * zápisu nepoškodí předchozí verzi. Data i hlavička se před uvolněním starých
+ * sektorů vynutí na disk (fsync). Čtení i zápis jde přes poziční NIO I/O.
+ *
+ * Čas změny je v hlavičce v sekundách jako neznaménkový int (platný do roku 2106).
+ */
+public class RegionStore {
+
+    public static final String REGION_EXTENSION = ".amr";
+
+    private static final int MAPS_PER_REGION = 1024;
+    private static final int SECTOR_SIZE = 512;
+    private static final int ENTRY_SIZE = 16;
+    private static final int HEADER_SIZE = MAPS_PER_REGION * ENTRY_SIZE;
+    private static final int HEADER_SECTORS = HEADER_SIZE / SECTOR_SIZE;
+
+    private final File folder;
+    private final Map<Integer, Region> regions = new ConcurrentHashMap<>();
+
+    public RegionStore(File folder) {
+        this.folder = folder;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    public byte[] read(int mapId) throws IOException {
+        Region region = region(mapId, false);
+        return region == null ? null : region.read(slot(mapId));
+    }
+
+    public void write(int mapId, byte[] data) throws IOException {
+        region(mapId, true).write(slot(mapId), data, false, System.currentTimeMillis());
+    }
+
+    /**
+     * Zapíše data jen tehdy, pokud mapa v úložišti ještě není (migrace).
+     * @param modified čas poslední změny do hlavičky (ms), aby migrace neomladila stará díla pro purge
+     * @return true, pokud se zapisovalo
+     */
+    public boolean writeIfAbsent(int mapId, byte[] data, long modified) throws IOException {
+        return region(mapId, true).write(slot(mapId), data, true, modified);
+    }
+
+    public boolean contains(int mapId) throws IOException {
+        Region region = region(mapId, false);
+        return region != null && region.contains(slot(mapId));
+    }
+
+    public boolean delete(int mapId) throws IOException {
+        Region region = region(mapId, false);
+        return region != null && region.delete(slot(mapId));
+    }
+
+    /**
+     * Smaže mapy, které se nezměnily od zadaného času.
+     * @param removed dostane ID každé smazané mapy
+     * @return počet smazaných map
+     */
+    public int purgeOlderThan(long thresholdMillis, IntConsumer removed) throws IOException {
+        long thresholdSeconds = thresholdMillis / 1000L;
+        int[] count = {0};
+        forEachRegionFile(regionIndex -> {
+            Region region = region(regionIndex * MAPS_PER_REGION, false);
+            if (region != null) {
+                count[0] += region.purgeOlderThan(thresholdSeconds, slot -> removed.accept(regionIndex * MAPS_PER_REGION + slot));
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Projde ID všech uložených map (čte jen hlavičky region souborů).
+     */
+    public void forEachStoredMap(IntConsumer action) throws IOException {
+        forEachRegionFile(regionIndex -> {
+            Region region = region(regionIndex * MAPS_PER_REGION, false);
+            if (region != null) region.forEachUsedSlot(slot -> action.accept(regionIndex * MAPS_PER_REGION + slot));
+        });
+    }
+
+    public void close() {
+        for (Region region : regions.values()) {
+            region.close();
+        }
+        regions.clear();
+    }
+
+    private interface RegionAction {
+        void accept(int regionIndex) throws IOException;
+    }
+
+    private void forEachRegionFile(RegionAction action) throws IOException {
+        if (!folder.exists()) return;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder.toPath(), "r.*" + REGION_EXTENSION)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    action.accept(Integer.parseInt(name.substring(2, name.length() - REGION_EXTENSION.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+    }
+
+    private static int slot(int mapId) {
+        return mapId & (MAPS_PER_REGION - 1);
+    }
+
+    private Region region(int mapId, boolean create) throws IOException {
+        int index = mapId >>> 10;
+        Region region = regions.get(index);
+        if (region != null) return region;
+
+        File file = new File(folder, "r." + index + REGION_EXTENSION);
+        if (!create && !file.exists()) return null;
+
+        synchronized (regions) {
+            region = regions.get(index);
+            if (region == null) {
+                if (!folder.exists()) folder.mkdirs();
+                region = new Region(file);
+                regions.put(index, region);
+            }
+            return region;
+        }
+    }
+
+    /**
+     * Jeden region soubor. Všechny operace jsou synchronizované na instanci.
+     */
+    private static final class Region {
+
+        private final FileChannel channel;
+        // Kopie hlavičky v paměti
+        private final int[] sectorOffsets = new int[MAPS_PER_REGION];
+        private final int[] lengths = new int[MAPS_PER_REGION];
+        // Sekundy od epochy (v hlavičce neznaménkový int)
+        private final long[] modified = new long[MAPS_PER_REGION];
+        private final int[] flags = new int[MAPS_PER_REGION];
+        private final BitSet usedSectors = new BitSet();
+
+        private Region(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+
+            if (channel.size() < HEADER_SIZE) {
+                writeFully(ByteBuffer.allocate(HEADER_SIZE), 0);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(header, 0);
+                header.flip();
+                for (int slot = 0; slot < MAPS_PER_REGION; slot++) {
+                    sectorOffsets[slot] = header.getInt();
+                    lengths[slot] = header.getInt();
+                    modified[slot] = Integer.toUnsignedLong(header.getInt());
+                    flags[slot] = header.getInt();
+                    if (lengths[slot] > 0) {
+                        usedSectors.set(sectorOffsets[slot], sectorOffsets[slot] + sectors(lengths[slot]));
+                    }
+                }
+            }
+            usedSectors.set(0, HEADER_SECTORS);
+        }
+
+        private synchronized boolean contains(int slot) {
+            return lengths[slot] > 0;
+        }
+
+        private synchronized byte[] read(int slot) throws IOException {
+            int length = lengths[slot];
+            if (length == 0) return null;
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            readFully(buffer, (long) sectorOffsets[slot] * SECTOR_SIZE);
+            return buffer.array();
+        }
+
+        private synchronized boolean write(int slot, byte[] data, boolean onlyIfAbsent, long modified) throws IOException {
+            if (onlyIfAbsent && lengths[slot] > 0) return false;
+
+            int oldOffset = sectorOffsets[slot];
+            int oldSectors = lengths[slot] > 0 ? sectors(lengths[slot]) : 0;
+
+            // Nová data jdou vždy do volného místa (stará verze zůstane platná až do přepnutí hlavičky)
+            int needed = sectors(data.length);
+            int offset = findFree(needed);
+            usedSectors.set(offset, offset + needed);
+            writeFully(ByteBuffer.wrap(data), (long) offset * SECTOR_SIZE);
+            // Hlavička smí ukázat jen na data, která už jsou na disku
+            channel.force(false);
+
+            setEntry(slot, offset, data.length, modified / 1000L, flags[slot]);
+            // Staré sektory se smí přepsat až po trvalém přepnutí hlavičky
+            channel.force(false);
+
+            if (oldSectors > 0) usedSectors.clear(oldOffset, oldOffset + oldSectors);
+            return true;
+        }
+
+        private synchronized boolean delete(int slot) throws IOException {
+            if (lengths[slot] == 0) return false;
+            clearEntry(slot);
+            channel.force(false);
+            return true;
+        }
+
+        private synchronized int purgeOlderThan(long thresholdSeconds, IntConsumer removed) throws IOException {
+            int count = 0;
+            for (int slot = 0; slot < MAPS_PER_REGION; slot++) {
+                if (lengths[slot] > 0 && modified[slot] < thresholdSeconds) {
+                    clearEntry(slot);
+                    removed.accept(slot);
+                    count++;
+                }
+            }
+            // Jeden fsync za celý region
+            if (count > 0) channel.force(false);
+            return count;
+        }
+
+        // Volající vynutí hlavičku na disk dřív, než uvolní zámek (a sektory se znovu použijí)
+        private void clearEntry(int slot) throws IOException {
+            int oldOffset = sectorOffsets[slot];
+            int oldSectors = sectors(lengths[slot]);
+            setEntry(slot, 0, 0, 0L, 0);
+            usedSectors.clear(oldOffset, oldOffset + oldSectors);
+        }
+
+        private synchronized void forEachUsedSlot(IntConsumer action) {
+            for (int slot = 0; slot < MAPS_PER_REGION; slot++) {
+                if (lengths[slot] > 0) action.accept(slot);
+            }
+        }
+
+        // First-fit hledání souvislého volného místa, jinak konec souboru
+        private int findFree(int needed) {
+            int start = usedSectors.nextClearBit(HEADER_SECTORS);
+            while (true) {
+                int nextUsed = usedSectors.nextSetBit(start);
+                if (nextUsed < 0 || nextUsed - start >= needed) return start;
+                start = usedSectors.nextClearBit(nextUsed);
+            }
+        }
+
+        private void setEntry(int slot, int offset, int length, long time, int entryFlags) throws IOException {
+            sectorOffsets[slot] = offset;
+            lengths[slot] = length;
+            modified[slot] = time;
+            flags[slot] = entryFlags;
+
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+            entry.putInt(offset).putInt(length).putInt((int) time).putInt(entryFlags);
+            entry.flip();
+            writeFully(entry, (long) slot * ENTRY_SIZE);
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) throw new IOException("Neočekávaný konec region souboru");
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        }
+
+        private synchronized void close() {
+            try {
+                channel.force(true);
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private static int sectors(int length) {
+            return (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        }
+    }
+}
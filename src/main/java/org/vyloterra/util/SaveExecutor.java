@@ -0,0 +1,250 @@
+package org.vyloterra.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Vlastní malý pool vláken pro ukládání map (místo společného ForkJoinPoolu serveru).
+ *
+ * Každá mapa má jeden slot s posledním snímkem. Nový snímek přepíše ještě neuložený
+ * starší ("vyhrává poslední"), takže stejná mapa se nikdy neukládá dvakrát současně
+ * a nárazové ukládání po velké akci nezapisuje stejný soubor vícekrát.
+ */
+public class SaveExecutor {
+
+    /**
+     * Uloží data jedné mapy; vyhozená výjimka = neúspěch.
+     */
+    public interface SaveAction {
+        void save(int mapId, byte[] pixels) throws Exception;
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final SaveAction action;
+    private final Map<Integer, Slot> slots = new ConcurrentHashMap<>();
+
+    // --- STATISTIKY ---
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private static final class Slot {
+        private byte[] latest;
+        // Snímek, který se právě zapisuje
+        private byte[] saving;
+        private long queuedAt;
+        private boolean scheduled;
+        // Slot byl odebrán z mapy slotů; nový snímek si musí vytvořit nový
+        private boolean removed;
+        private final List<Consumer<Boolean>> callbacks = new ArrayList<>(1);
+    }
+
+    public SaveExecutor(int threads, SaveAction action) {
+        this.action = action;
+        AtomicInteger counter = new AtomicInteger();
+        // Fronta obsahuje nejvýše jeden úkol na mapu (sloty), takže velikost je omezená počtem map
+        this.pool = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "ArtMap-Save-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Naplánuje uložení snímku mapy. Pokud na uložení už čeká starší snímek,
+     * nahradí se tímto a callback se zavolá po uložení novějších dat.
+     * @param callback volitelná akce po dokončení (běží ve vlákně poolu), může být null
+     */
+    public void submit(int mapId, byte[] pixels, Consumer<Boolean> callback) {
+        submitted.increment();
+        while (true) {
+            Slot slot = slots.computeIfAbsent(mapId, id -> new Slot());
+            synchronized (slot) {
+                // Nečinný slot mezitím uvolnilo vlákno poolu
+                if (slot.removed) continue;
+
+                if (slot.latest != null) {
+                    coalesced.increment();
+                } else {
+                    slot.queuedAt = System.nanoTime();
+                    queued.incrementAndGet();
+                }
+                slot.latest = pixels;
+                if (callback != null) slot.callbacks.add(callback);
+
+                if (!slot.scheduled) {
+                    slot.scheduled = true;
+                    pool.execute(() -> drain(mapId, slot));
+                }
+                return;
+            }
+        }
+    }
+
+    // Ukládá, dokud ve slotu čeká novější snímek; pak slot uvolní
+    private void drain(int mapId, Slot slot) {
+        while (true) {
+            byte[] pixels;
+            long queuedAt;
+            List<Consumer<Boolean>> callbacks;
+            synchronized (slot) {
+                pixels = slot.latest;
+                if (pixels == null) {
+                    // Nečinný slot se uvolní. Odebírá se pod zámkem slotu, takže
+                    // pro jednu mapu nikdy nevzniknou dva aktivní sloty zároveň.
+                    slot.scheduled = false;
+                    slot.removed = true;
+                    slots.remove(mapId, slot);
+                    return;
+                }
+                slot.latest = null;
+                slot.saving = pixels;
+                queuedAt = slot.queuedAt;
+                callbacks = slot.callbacks.isEmpty() ? List.of() : new ArrayList<>(slot.callbacks);
+                slot.callbacks.clear();
+                queued.decrementAndGet();
+            }
+
+            boolean success;
+            try {
+                action.save(mapId, pixels);
+                success = true;
+                completed.increment();
+            } catch (Exception e) {
+                success = false;
+                failed.increment();
+            }
+
+            long latency = System.nanoTime() - queuedAt;
+            totalLatencyNanos.add(latency);
+            maxLatencyNanos.accumulateAndGet(latency, Math::max);
+
+            runCallbacks(callbacks, success);
+
+            // Zápis končí až po callbacích, na to čeká cancel()
+            synchronized (slot) {
+                slot.saving = null;
+                slot.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Zahodí čekající snímek mapy (mapa se maže) a počká, až doběhne případný
+     * rozpracovaný zápis i jeho callbacky. Callbacky zahozeného snímku dostanou false.
+     */
+    public void cancel(int mapId) {
+        Slot slot = slots.get(mapId);
+        if (slot == null) return;
+        List<Consumer<Boolean>> callbacks;
+        synchronized (slot) {
+            if (slot.latest != null) {
+                slot.latest = null;
+                queued.decrementAndGet();
+            }
+            callbacks = new ArrayList<>(slot.callbacks);
+            slot.callbacks.clear();
+            while (slot.saving != null) {
+                try {
+                    slot.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        runCallbacks(callbacks, false);
+    }
+
+    private static void runCallbacks(List<Consumer<Boolean>> callbacks, boolean success) {
+        for (Consumer<Boolean> callback : callbacks) {
+            try {
+                callback.accept(success);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Nejnovější snímek mapy, který ještě není na disku (čeká nebo se zapisuje).
+     * Načítání mapy ho musí upřednostnit před daty z disku.
+     * @return kopie snímku, nebo null
+     */
+    public byte[] getUnsaved(int mapId) {
+        Slot slot = slots.get(mapId);
+        if (slot == null) return null;
+        synchronized (slot) {
+            byte[] pixels = slot.latest != null ? slot.latest : slot.saving;
+            return pixels == null ? null : pixels.clone();
+        }
+    }
+
+    /**
+     * Počká na dokončení všech naplánovaných uložení a ukončí pool.
+     * @return false, pokud se nestihlo vše uložit
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        pool.shutdown();
+        try {
+            return pool.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public boolean isShutdown() {
+        return pool.isShutdown();
+    }
+
+    // --- GETTERY PRO /artmap stats ---
+
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public int getActiveThreads() {
+        return pool.getActiveCount();
+    }
+
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public double getAverageLatencyMillis() {
+        long count = completed.sum() + failed.sum();
+        return count == 0 ? 0.0 : totalLatencyNanos.sum() / (double) count / 1_000_000.0;
+    }
+
+    public double getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1_000_000.0;
+    }
+}
@@ -0,0 +1,131 @@
+package org.vyloterra.bench;
+
+import org.vyloterra.ArtRenderer;
+import org.vyloterra.util.ArtMath;
+import org.vyloterra.util.CanvasCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Porovnání formátů dat plátna (vývojový nástroj, do pluginu se nebalí).
+ *
+ * Pro pět skupin obrazů nakreslených štětci pluginu (3, 20, 200 a 2000 tahů,
+ * dithering) vypíše průměrnou velikost ve starém formátu (GZIP po sloupcích),
+ * v čistém Deflate po řádcích a v {@link CanvasCodec}, a časy kódování/dekódování.
+ *
+ * Spuštění: java -cp target/classes:target/test-classes org.vyloterra.bench.CanvasCodecBenchmark
+ */
+public final class CanvasCodecBenchmark {
+
+    private static final int MAPS_PER_GROUP = 50;
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws IOException {
+        Random random = new Random(42);
+        String[] names = {"3 tahy", "20 tahů", "200 tahů", "2000 tahů", "dithering"};
+        byte[][][] groups = {
+                canvases(random, 3, false),
+                canvases(random, 20, false),
+                canvases(random, 200, false),
+                canvases(random, 2000, false),
+                canvases(random, 200, true)
+        };
+
+        System.out.println("skupina      gzip/sloupce  deflate  kodek  (B, průměr)");
+        long legacyNanos = 0;
+        long codecNanos = 0;
+        long decodeNanos = 0;
+        long legacyDecodeNanos = 0;
+        int count = 0;
+        for (int g = 0; g < groups.length; g++) {
+            long legacy = 0, deflate = 0, codec = 0;
+            for (byte[] pixels : groups[g]) {
+                legacy += encodeLegacy(pixels).length;
+                deflate += deflate(pixels);
+                codec += CanvasCodec.encode(pixels).length;
+            }
+            int n = groups[g].length;
+            System.out.printf("%-12s %12d %8d %6d%n", names[g], legacy / n, deflate / n, codec / n);
+
+            // Zahřátí a měření
+            for (int round = 0; round < ROUNDS; round++) {
+                for (byte[] pixels : groups[g]) {
+                    long start = System.nanoTime();
+                    byte[] legacyData = encodeLegacy(pixels);
+                    long legacyEnd = System.nanoTime();
+                    byte[] encoded = CanvasCodec.encode(pixels);
+                    long codecEnd = System.nanoTime();
+                    CanvasCodec.decode(encoded);
+                    long decodeEnd = System.nanoTime();
+                    CanvasCodec.decode(legacyData);
+                    long legacyDecodeEnd = System.nanoTime();
+                    if (round >= ROUNDS / 2) {
+                        legacyNanos += legacyEnd - start;
+                        codecNanos += codecEnd - legacyEnd;
+                        decodeNanos += decodeEnd - codecEnd;
+                        legacyDecodeNanos += legacyDecodeEnd - decodeEnd;
+                        count++;
+                    }
+                }
+            }
+        }
+        System.out.printf("kódování: gzip %.3f ms, kodek %.3f ms na mapu%n",
+                legacyNanos / 1e6 / count, codecNanos / 1e6 / count);
+        System.out.printf("dekódování: gzip %.3f ms, kodek %.3f ms na mapu%n",
+                legacyDecodeNanos / 1e6 / count, decodeNanos / 1e6 / count);
+    }
+
+    private static byte[][] canvases(Random random, int strokes, boolean dithered) {
+        byte[][] result = new byte[MAPS_PER_GROUP][];
+        for (int i = 0; i < MAPS_PER_GROUP; i++) {
+            ArtRenderer renderer = ArtRenderer.createBlank(i, new File("bench"));
+            for (int s = 0; s < strokes; s++) {
+                int x = random.nextInt(128);
+                int y = random.nextInt(128);
+                int radius = random.nextInt(4);
+                byte color = randomColor(random);
+                if (dithered) {
+                    ArtMath.drawMix(renderer, x, y, radius + 2, color, randomColor(random));
+                } else {
+                    ArtMath.drawLine(renderer, x, y, x + random.nextInt(31) - 15, y + random.nextInt(31) - 15, radius, color);
+                }
+            }
+            result[i] = renderer.getPixelsSnapshot();
+        }
+        return result;
+    }
+
+    // Barvy mapy: základ 1-61, stín 0-3
+    private static byte randomColor(Random random) {
+        return (byte) ((1 + random.nextInt(61)) * 4 + random.nextInt(4));
+    }
+
+    // Formát starších verzí pluginu (map_ID.dat)
+    private static byte[] encodeLegacy(byte[] pixels) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] column = new byte[128];
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            for (int x = 0; x < 128; x++) {
+                for (int y = 0; y < 128; y++) column[y] = pixels[y * 128 + x];
+                out.write(column);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int deflate(byte[] pixels) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(pixels);
+        deflater.finish();
+        byte[] out = new byte[pixels.length + 1024];
+        int length = 0;
+        while (!deflater.finished()) length += deflater.deflate(out, length, out.length - length);
+        deflater.end();
+        return length;
+    }
+}
@@ -0,0 +1,111 @@
+package org.vyloterra.bench;
+
+import org.vyloterra.ArtRenderer;
+import org.vyloterra.util.ArtMath;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Rychlost kreslení čar štětcem (vývojový nástroj, do pluginu se nebalí).
+ *
+ * "Před" = původní kreslení po pixelech přes {@link ArtRenderer#drawPixel}
+ * (zámek plátna pro každý pixel každého otisku štětce), "po" = dávkový tah
+ * {@link ArtRenderer.Stroke} přes {@link ArtMath#drawLine}.
+ * Otisknuté pixely = délka cesty * plocha štětce.
+ *
+ * Spuštění: java -cp target/classes:target/test-classes org.vyloterra.bench.StrokeBenchmark
+ */
+public final class StrokeBenchmark {
+
+    private static final long DURATION_NANOS = 2_000_000_000L;
+
+    public static void main(String[] args) {
+        for (int radius : new int[]{0, 5}) {
+            Result before = run(radius, true);
+            Result after = run(radius, false);
+            System.out.printf("radius %d: %.1fM -> %.1fM otisknutých px/s (%.1fk -> %.1fk čar/s)%n", radius,
+                    before.stampedPerSecond() / 1e6, after.stampedPerSecond() / 1e6,
+                    before.linesPerSecond() / 1e3, after.linesPerSecond() / 1e3);
+        }
+    }
+
+    private record Result(long lines, long stamped, long nanos) {
+        double stampedPerSecond() {
+            return stamped * 1e9 / nanos;
+        }
+
+        double linesPerSecond() {
+            return lines * 1e9 / nanos;
+        }
+    }
+
+    private static Result run(int radius, boolean perPixel) {
+        ArtRenderer renderer = ArtRenderer.createBlank(0, new File("bench"));
+        Random random = new Random(7);
+        int brushArea = brushArea(radius);
+        // Zahřátí JIT
+        draw(renderer, random, radius, perPixel, DURATION_NANOS / 4, brushArea);
+        return draw(renderer, random, radius, perPixel, DURATION_NANOS, brushArea);
+    }
+
+    private static Result draw(ArtRenderer renderer, Random random, int radius, boolean perPixel, long duration, int brushArea) {
+        long lines = 0;
+        long stamped = 0;
+        long start = System.nanoTime();
+        long end = start + duration;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            for (int i = 0; i < 64; i++) {
+                int x1 = random.nextInt(128), y1 = random.nextInt(128);
+                int x2 = random.nextInt(128), y2 = random.nextInt(128);
+                byte color = (byte) (4 + random.nextInt(240));
+                if (perPixel) {
+                    drawLinePerPixel(renderer, x1, y1, x2, y2, radius, color);
+                } else {
+                    ArtMath.drawLine(renderer, x1, y1, x2, y2, radius, color);
+                }
+                lines++;
+                stamped += (long) (Math.max(Math.abs(x2 - x1), Math.abs(y2 - y1)) + 1) * brushArea;
+            }
+        }
+        return new Result(lines, stamped, now - start);
+    }
+
+    private static int brushArea(int radius) {
+        int area = 0;
+        for (int span : ArtMath.getBrushSpans(radius)) area += span * 2 + 1;
+        return area;
+    }
+
+    // Původní ArtMath.drawLine: Bresenham, v každém bodě celý štětec po pixelech
+    private static void drawLinePerPixel(ArtRenderer renderer, int x1, int y1, int x2, int y2, int radius, byte color) {
+        int dx = Math.abs(x2 - x1);
+        int dy = Math.abs(y2 - y1);
+        int sx = x1 < x2 ? 1 : -1;
+        int sy = y1 < y2 ? 1 : -1;
+        int err = dx - dy;
+
+        while (true) {
+            drawPencilPerPixel(renderer, x1, y1, radius, color);
+            if (x1 == x2 && y1 == y2) break;
+            int e2 = 2 * err;
+            if (e2 > -dy) { err -= dy; x1 += sx; }
+            if (e2 < dx) { err += dx; y1 += sy; }
+        }
+    }
+
+    private static void drawPencilPerPixel(ArtRenderer renderer, int cx, int cy, int radius, byte color) {
+        if (radius <= 0) {
+            renderer.drawPixel(cx, cy, color);
+            return;
+        }
+        int rSq = radius * radius;
+        for (int y = -radius; y <= radius; y++) {
+            int width = (int) Math.sqrt(rSq - y * y);
+            for (int x = -width; x <= width; x++) {
+                renderer.drawPixel(cx + x, cy + y, color);
+            }
+        }
+    }
+}